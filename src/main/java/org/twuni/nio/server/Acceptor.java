@@ -6,11 +6,19 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.twuni.Logger;
 
@@ -20,6 +28,20 @@ import org.twuni.Logger;
  * newly accepted socket and the provided dispatcher, listening for events being
  * emitted from the given {@link EventHandler}, then registers that connection
  * onto the dispatcher.
+ * <p>
+ * The server socket is non-blocking and driven by {@link SelectionKey#OP_ACCEPT}
+ * readiness. Each wakeup drains every pending connection from the backlog, and
+ * registration onto the dispatcher is a lock-free handoff, so the accepting
+ * thread never waits on an event loop. {@link #run()} may be executed by
+ * several threads at once; each of them selects on a private selector over the
+ * same listening channel.
+ * </p>
+ * <p>
+ * Admission may be limited by a maximum number of concurrent connections and a
+ * maximum number of accepted connections per second. When either limit is
+ * reached, the acceptor stops accepting and leaves further clients waiting in
+ * the backlog until it is below the limit again.
+ * </p>
  */
 public class Acceptor implements Runnable, Closeable {
 
@@ -27,12 +49,26 @@ public class Acceptor implements Runnable, Closeable {
 		return new Logger( Acceptor.class.getName() );
 	}
 
+	public static final int DEFAULT_BACKLOG = 1024;
+
+	/**
+	 * How long to wait, in milliseconds, before checking again whether a
+	 * throttled acceptor may resume accepting connections.
+	 */
+	private static final long THROTTLE_INTERVAL = 100;
+
 	private final ServerSocketChannel channel;
 	private final DispatcherProvider dispatcherProvider;
 	private final EventHandler eventHandler;
 	private final ConnectionFactory connectionFactory;
 	private final Logger log;
-	private boolean running;
+	private final Set<Selector> selectors = Collections.newSetFromMap( new ConcurrentHashMap<Selector, Boolean>() );
+	private final Set<Dispatcher> dispatchers = Collections.newSetFromMap( new ConcurrentHashMap<Dispatcher, Boolean>() );
+	private final AtomicLong acceptWindow = new AtomicLong();
+	private final AtomicInteger acceptedInWindow = new AtomicInteger();
+	private volatile boolean running;
+	private volatile int maximumConnections;
+	private volatile int maximumAcceptRate;
 
 	public Acceptor( InetAddress address, int port, DispatcherProvider dispatcherProvider, EventHandler eventHandler, ConnectionFactory connectionFactory ) throws IOException {
 		this( new InetSocketAddress( address, port ), dispatcherProvider, eventHandler, connectionFactory );
@@ -62,8 +98,12 @@ public class Acceptor implements Runnable, Closeable {
 		this( localServerEndpoint, dispatcherProvider, eventHandler, connectionFactory, defaultLogger() );
 	}
 
+	public Acceptor( SocketAddress localServerEndpoint, DispatcherProvider dispatcherProvider, EventHandler eventHandler, ConnectionFactory connectionFactory, Logger logger ) throws IOException {
+		this( localServerEndpoint, dispatcherProvider, eventHandler, connectionFactory, DEFAULT_BACKLOG, logger );
+	}
+
 	/**
-	 * Opens a blocking server socket channel bound to the given
+	 * Opens a non-blocking server socket channel bound to the given
 	 * {@code localServerEndpoint}.
 	 *
 	 * @param localServerEndpoint
@@ -77,6 +117,9 @@ public class Acceptor implements Runnable, Closeable {
 	 * @param connectionFactory
 	 *            the factory to use for creating connections each time a
 	 *            {@link Socket} is accepted by this object.
+	 * @param backlog
+	 *            the maximum number of pending connections the operating
+	 *            system should queue for this object.
 	 * @param logger
 	 *            the logger implementation to use for debugging.
 	 * @throws IOException
@@ -84,10 +127,10 @@ public class Acceptor implements Runnable, Closeable {
 	 *             or bind the internal {@link ServerSocketChannel} used by
 	 *             this object.
 	 */
-	public Acceptor( SocketAddress localServerEndpoint, DispatcherProvider dispatcherProvider, EventHandler eventHandler, ConnectionFactory connectionFactory, Logger logger ) throws IOException {
+	public Acceptor( SocketAddress localServerEndpoint, DispatcherProvider dispatcherProvider, EventHandler eventHandler, ConnectionFactory connectionFactory, int backlog, Logger logger ) throws IOException {
 		channel = ServerSocketChannel.open();
-		channel.configureBlocking( true );
-		channel.socket().bind( localServerEndpoint );
+		channel.configureBlocking( false );
+		channel.socket().bind( localServerEndpoint, backlog );
 		this.dispatcherProvider = dispatcherProvider;
 		this.connectionFactory = connectionFactory;
 		this.eventHandler = eventHandler;
@@ -98,39 +141,237 @@ public class Acceptor implements Runnable, Closeable {
 		this( localServerEndpoint, new DispatcherPool( dispatcherCount, selector, eventHandler ), eventHandler, connectionFactory );
 	}
 
+	/**
+	 * Accepts every connection currently waiting in the backlog, for as long as
+	 * this acceptor is below its admission limits.
+	 *
+	 * <p>
+	 * If accepting a connection fails, for instance because the process has
+	 * run out of file descriptors, the failure is reported and this acceptor
+	 * is throttled as if it had reached a limit, rather than being woken up
+	 * again right away by the connection still waiting in the backlog.
+	 * </p>
+	 *
+	 * @return {@code true} if accepting stopped because an admission limit was
+	 *         reached or a connection could not be accepted, or {@code false}
+	 *         if the backlog was drained.
+	 */
+	private boolean acceptPending() throws IOException {
+
+		int accepted = 0;
+		int connections = getConnectionCount();
+
+		try {
+
+			while( true ) {
+
+				if( maximumConnections > 0 && connections >= maximumConnections ) {
+					return true;
+				}
+
+				if( !tryAcquireAcceptPermit() ) {
+					return true;
+				}
+
+				SocketChannel client;
+
+				try {
+					client = channel.accept();
+				} catch( ClosedChannelException exception ) {
+					releaseAcceptPermit();
+					throw exception;
+				} catch( IOException exception ) {
+					releaseAcceptPermit();
+					onException( exception );
+					return true;
+				}
+
+				if( client == null ) {
+					releaseAcceptPermit();
+					return false;
+				}
+
+				onAccept( client );
+				accepted++;
+				connections++;
+
+			}
+
+		} finally {
+			if( accepted > 0 ) {
+				log.info( "ACCEPT %d", Integer.valueOf( accepted ) );
+			}
+		}
+
+	}
+
 	@Override
 	public void close() throws IOException {
 		running = false;
 		channel.close();
+		for( Selector selector : selectors ) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return the number of connections accepted by this object that are still
+	 *         open.
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for( Dispatcher dispatcher : dispatchers ) {
+			count += dispatcher.getConnectionCount();
+		}
+		return count;
+	}
+
+	public EventHandler getEventHandler() {
+		return eventHandler;
+	}
+
+	public int getMaximumAcceptRate() {
+		return maximumAcceptRate;
+	}
+
+	public int getMaximumConnections() {
+		return maximumConnections;
+	}
+
+	private void onAccept( SocketChannel client ) throws IOException {
+		try {
+			client.configureBlocking( false );
+			Dispatcher dispatcher = dispatcherProvider.provideDispatcher();
+			if( dispatcher == null ) {
+				log.info( "REJECT %s No dispatcher available.", client.socket().getRemoteSocketAddress() );
+				client.close();
+				return;
+			}
+			dispatchers.add( dispatcher );
+			Connection connection = connectionFactory.createConnection( client, dispatcher, eventHandler );
+			dispatcher.register( connection );
+		} catch( IOException exception ) {
+			client.close();
+			onException( exception );
+		}
 	}
 
 	protected void onException( Throwable exception ) {
 		log.info( "ERROR T/%s %s", exception.getClass().getName(), exception.getLocalizedMessage() );
 	}
 
+	private void releaseAcceptPermit() {
+		if( maximumAcceptRate > 0 ) {
+			acceptedInWindow.decrementAndGet();
+		}
+	}
+
 	@Override
 	public void run() {
+
+		Selector selector;
+		SelectionKey key;
+
+		try {
+			selector = channel.provider().openSelector();
+			key = channel.register( selector, SelectionKey.OP_ACCEPT );
+		} catch( IOException exception ) {
+			onException( exception );
+			return;
+		}
+
+		selectors.add( selector );
 		running = true;
 		log.info( "OPEN" );
-		while( running && channel.isOpen() ) {
-			if( Thread.interrupted() ) {
-				running = false;
-				break;
+
+		try {
+
+			boolean throttled = false;
+
+			while( running && channel.isOpen() ) {
+
+				if( Thread.interrupted() ) {
+					running = false;
+					break;
+				}
+
+				try {
+					selector.select( throttled ? THROTTLE_INTERVAL : 0 );
+					selector.selectedKeys().clear();
+					throttled = acceptPending();
+					key.interestOps( throttled ? 0 : SelectionKey.OP_ACCEPT );
+				} catch( CancelledKeyException exception ) {
+					// The channel was closed while this thread was selecting.
+					log.info( "CLOSED" );
+					break;
+				} catch( ClosedChannelException exception ) {
+					log.info( "CLOSED" );
+					break;
+				} catch( ClosedSelectorException exception ) {
+					log.info( "CLOSED" );
+					break;
+				} catch( IOException exception ) {
+					onException( exception );
+				}
+
 			}
+
+		} finally {
+			selectors.remove( selector );
 			try {
-				SocketChannel client = channel.accept();
-				log.info( "ACCEPT" );
-				client.configureBlocking( false );
-				Dispatcher dispatcher = dispatcherProvider.provideDispatcher();
-				Connection connection = connectionFactory.createConnection( client, dispatcher, eventHandler );
-				dispatcher.register( connection );
-			} catch( ClosedChannelException exception ) {
-				log.info( "CLOSED" );
-				break;
+				selector.close();
 			} catch( IOException exception ) {
 				onException( exception );
 			}
 		}
+
+	}
+
+	/**
+	 * Limits the rate at which this object accepts connections.
+	 *
+	 * @param maximumAcceptRate
+	 *            the maximum number of connections to accept per second, or
+	 *            zero for no limit.
+	 */
+	public void setMaximumAcceptRate( int maximumAcceptRate ) {
+		this.maximumAcceptRate = maximumAcceptRate;
+	}
+
+	/**
+	 * Limits the number of connections accepted by this object that may be
+	 * open at the same time.
+	 *
+	 * @param maximumConnections
+	 *            the maximum number of concurrent connections, or zero for no
+	 *            limit.
+	 */
+	public void setMaximumConnections( int maximumConnections ) {
+		this.maximumConnections = maximumConnections;
+	}
+
+	private boolean tryAcquireAcceptPermit() {
+
+		int limit = maximumAcceptRate;
+
+		if( limit <= 0 ) {
+			return true;
+		}
+
+		long window = System.currentTimeMillis() / 1000;
+		long current = acceptWindow.get();
+
+		if( current != window && acceptWindow.compareAndSet( current, window ) ) {
+			acceptedInWindow.set( 0 );
+		}
+
+		if( acceptedInWindow.incrementAndGet() > limit ) {
+			acceptedInWindow.decrementAndGet();
+			return false;
+		}
+
+		return true;
+
 	}
 
 }
@@ -0,0 +1,300 @@
+package org.twuni.nio.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.twuni.Logger;
+
+/**
+ * A blocking dispatcher services each connection with a thread of its own,
+ * reading from it with blocking I/O and calling the same {@link EventHandler}
+ * callbacks as a selector-based {@link Dispatcher}. Protocol code therefore
+ * runs unchanged in either mode, but in this one a handler may block (on a
+ * database, say) without holding up any other connection.
+ * <p>
+ * Where the runtime supports virtual threads, connections are serviced by
+ * virtual threads; otherwise, by ordinary daemon threads. Writes are flushed
+ * by the writing thread itself, which blocks until the peer has accepted them.
+ * Since there is no event loop to hand them to, writers take turns on a
+ * connection's outbound queue by holding its output lock. Explicit locks are
+ * used rather than monitors throughout, since a virtual thread that blocks
+ * while holding a monitor pins the carrier thread it runs on.
+ * The dispatcher's own thread, started on first use, only runs
+ * {@link #execute(Runnable) tasks} and {@link #schedule(Runnable, long, java.util.concurrent.TimeUnit)
+ * timers}.
+ * </p>
+ * <p>
+ * A blocking dispatcher is its own {@link DispatcherProvider}, so it can be
+ * handed to an {@link Acceptor} in place of a {@link DispatcherPool}.
+ * </p>
+ */
+public class BlockingDispatcher extends Dispatcher implements DispatcherProvider {
+
+	private class Reader implements Runnable {
+
+		final Connection connection;
+		final ReentrantLock output = new ReentrantLock();
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition readable = lock.newCondition();
+
+		public Reader( Connection connection ) {
+			this.connection = connection;
+		}
+
+		private boolean awaitReadable() {
+			lock.lock();
+			try {
+				while( connection.isReadSuspended() && !connection.isClosed() ) {
+					readable.await();
+				}
+				return !connection.isClosed();
+			} catch( InterruptedException exception ) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				eventHandler.onConnected( connection );
+				if( connection.hasPendingOutput() ) {
+					requestWrite( connection );
+				}
+				while( awaitReadable() ) {
+					eventHandler.onReadRequested( connection );
+				}
+			} catch( RuntimeException exception ) {
+				onException( exception );
+			} finally {
+				connection.close();
+			}
+		}
+
+		public void wake() {
+			lock.lock();
+			try {
+				readable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	private static Logger defaultLogger() {
+		return new Logger( BlockingDispatcher.class.getName() );
+	}
+
+	/**
+	 * @return a factory for virtual threads if the runtime supports them, or
+	 *         for daemon threads otherwise.
+	 */
+	public static ThreadFactory defaultThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod( "ofVirtual" );
+			Object builder = ofVirtual.invoke( null );
+			Method factory = Class.forName( "java.lang.Thread$Builder" ).getMethod( "factory" );
+			return (ThreadFactory) factory.invoke( builder );
+		} catch( Exception exception ) {
+			return new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread( Runnable task ) {
+					Thread thread = new Thread( task, String.format( "%s %d", Reader.class.getSimpleName(), Integer.valueOf( count.incrementAndGet() ) ) );
+					thread.setDaemon( true );
+					return thread;
+				}
+
+			};
+		}
+	}
+
+	private final Logger log;
+	private final EventHandler eventHandler;
+	private final ThreadFactory threadFactory;
+	private final ConcurrentHashMap<Connection, Reader> readers = new ConcurrentHashMap<Connection, Reader>();
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	public BlockingDispatcher( EventHandler eventHandler ) throws IOException {
+		this( eventHandler, defaultThreadFactory() );
+	}
+
+	public BlockingDispatcher( EventHandler eventHandler, ThreadFactory threadFactory ) throws IOException {
+		this( eventHandler, threadFactory, defaultLogger() );
+	}
+
+	public BlockingDispatcher( EventHandler eventHandler, BufferPool bufferPool ) throws IOException {
+		this( eventHandler, defaultThreadFactory(), bufferPool, defaultLogger() );
+	}
+
+	public BlockingDispatcher( EventHandler eventHandler, ThreadFactory threadFactory, Logger logger ) throws IOException {
+		this( eventHandler, threadFactory, new BufferPool(), logger );
+	}
+
+	public BlockingDispatcher( EventHandler eventHandler, ThreadFactory threadFactory, BufferPool bufferPool, Logger logger ) throws IOException {
+		super( SelectorProvider.provider().openSelector(), eventHandler, bufferPool, logger );
+		this.eventHandler = eventHandler;
+		this.threadFactory = threadFactory;
+		log = logger;
+	}
+
+	/**
+	 * Connections are only ever migrated between the dispatchers of a
+	 * {@link DispatcherPool}, which creates them itself, and a blocking
+	 * dispatcher never gives up a connection of its own, so nothing is ever
+	 * adopted by one.
+	 */
+	@Override
+	void adopt( Connection connection ) {
+		// Never called; see above.
+	}
+
+	@Override
+	public void cancelWrite( Connection connection ) {
+		// Writes are flushed by the thread that makes them.
+	}
+
+	@Override
+	void deliver( Connection connection, byte [] buffer, int offset, int length ) {
+		Reader reader = readers.get( connection );
+		if( reader == null ) {
+			return;
+		}
+		reader.output.lock();
+		try {
+			connection.append( buffer, offset, length );
+		} finally {
+			reader.output.unlock();
+		}
+		requestWrite( connection );
+	}
+
+	/**
+	 * Releases the connection's outbound queue and forgets the connection.
+	 * This is the last thing done for a connection, once it is closed.
+	 */
+	@Override
+	void discard( Connection connection ) {
+		Reader reader = readers.remove( connection );
+		if( reader == null ) {
+			return;
+		}
+		reader.output.lock();
+		try {
+			connection.discardOutput();
+		} finally {
+			reader.output.unlock();
+		}
+	}
+
+	@Override
+	public void flush( Connection connection ) throws IOException {
+		Reader reader = readers.get( connection );
+		if( reader == null ) {
+			return;
+		}
+		reader.output.lock();
+		try {
+			connection.flush();
+		} finally {
+			reader.output.unlock();
+		}
+	}
+
+	/**
+	 * @return one, since every read after the first would block until the
+	 *         peer sends more data.
+	 */
+	@Override
+	public int getReadBudget() {
+		return 1;
+	}
+
+	@Override
+	void migrate( Dispatcher target, int count, long idleTime ) {
+		// Connections are bound to their threads, so there is nothing to move.
+	}
+
+	@Override
+	public Dispatcher provideDispatcher() {
+		if( started.compareAndSet( false, true ) ) {
+			Thread thread = new Thread( this, BlockingDispatcher.class.getSimpleName() );
+			thread.setDaemon( true );
+			thread.start();
+		}
+		return this;
+	}
+
+	@Override
+	public void register( Connection connection ) throws ClosedChannelException {
+		if( !connection.getClient().isOpen() ) {
+			throw new ClosedChannelException();
+		}
+		try {
+			connection.getClient().configureBlocking( true );
+		} catch( IOException exception ) {
+			onException( exception );
+			connection.close();
+			return;
+		}
+		log.info( "REGISTER T/%s C/%s", connection.getClass().getName(), connection.id() );
+		Reader reader = new Reader( connection );
+		readers.put( connection, reader );
+		countConnection();
+		threadFactory.newThread( reader ).start();
+	}
+
+	@Override
+	public void requestWrite( Connection connection ) {
+		Reader reader = readers.get( connection );
+		if( reader == null ) {
+			return;
+		}
+		// Only the connection's own queue is flushed here. Since a blocking
+		// flush leaves nothing behind, the connection never stays unwritable,
+		// and the event handler has nothing more to do.
+		reader.output.lock();
+		try {
+			if( !connection.isClosed() ) {
+				connection.flush();
+			}
+		} catch( IOException exception ) {
+			eventHandler.onException( exception );
+			connection.close();
+		} finally {
+			reader.output.unlock();
+		}
+	}
+
+	@Override
+	void unregister( Connection connection ) {
+		super.unregister( connection );
+		// The reader stays on record until its output has been discarded.
+		Reader reader = readers.get( connection );
+		if( reader != null ) {
+			reader.wake();
+		}
+	}
+
+	@Override
+	void updateReadInterest( Connection connection ) {
+		Reader reader = readers.get( connection );
+		if( reader != null ) {
+			reader.wake();
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package org.twuni.nio.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer pool lends out direct {@link ByteBuffer}s from a small number of
+ * size classes. Buffers of each class are carved out of larger slabs, so that
+ * many connections can share a bounded amount of off-heap memory: a connection
+ * borrows a buffer for as long as it is reading or has data queued for
+ * writing, and gives it back as soon as it is idle.
+ * <p>
+ * Requests larger than the largest size class are served with a dedicated,
+ * unpooled buffer.
+ * </p>
+ * <p>
+ * Each dispatcher owns a pool of its own, so the number of free buffers a pool
+ * may keep bounds the idle off-heap memory held per dispatcher. By default,
+ * that is {@link #DEFAULT_MAXIMUM_FREE_BYTES}, split evenly between the size
+ * classes.
+ * </p>
+ */
+public class BufferPool {
+
+	static class SizeClass {
+
+		public final int size;
+		public final int maximumFree;
+		public final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+		public final AtomicInteger freeCount = new AtomicInteger();
+
+		public SizeClass( int size, int maximumFree ) {
+			this.size = size;
+			this.maximumFree = maximumFree;
+		}
+
+	}
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024;
+	public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+	public static final long DEFAULT_MAXIMUM_FREE_BYTES = 4 * 1024 * 1024;
+
+	private static final int [] DEFAULT_SIZE_CLASSES = {
+		1024,
+		DEFAULT_SEGMENT_SIZE,
+		16 * 1024,
+		DEFAULT_SLAB_SIZE
+	};
+
+	/**
+	 * @return the number of free buffers each of the given size classes may
+	 *         keep, so that together they hold at most the given number of
+	 *         bytes. Each class may keep at least one buffer.
+	 */
+	private static int [] maximumFree( long maximumFreeBytes, int [] sizeClasses ) {
+		int [] maximumFree = new int [sizeClasses.length];
+		long share = maximumFreeBytes / sizeClasses.length;
+		for( int i = 0; i < sizeClasses.length; i++ ) {
+			maximumFree[i] = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, share / sizeClasses[i] ) );
+		}
+		return maximumFree;
+	}
+
+	private static int [] repeat( int value, int count ) {
+		int [] values = new int [count];
+		for( int i = 0; i < count; i++ ) {
+			values[i] = value;
+		}
+		return values;
+	}
+
+	private final SizeClass [] sizeClasses;
+	private final int slabSize;
+	private final AtomicInteger borrowed = new AtomicInteger();
+	private final AtomicInteger peakBorrowed = new AtomicInteger();
+	private final AtomicInteger free = new AtomicInteger();
+
+	public BufferPool() {
+		this( DEFAULT_MAXIMUM_FREE_BYTES );
+	}
+
+	/**
+	 * @param maximumFreeBytes
+	 *            the maximum number of bytes this pool may keep in free
+	 *            buffers, split evenly between the default size classes.
+	 */
+	public BufferPool( long maximumFreeBytes ) {
+		this( DEFAULT_SLAB_SIZE, maximumFree( maximumFreeBytes, DEFAULT_SIZE_CLASSES ), DEFAULT_SIZE_CLASSES );
+	}
+
+	/**
+	 * @param slabSize
+	 *            the number of bytes to allocate at once when a size class has
+	 *            no free buffers left. Each slab is sliced into as many buffers
+	 *            of that class as it fits.
+	 * @param maximumFree
+	 *            the maximum number of free buffers to keep per size class.
+	 *            Buffers released beyond this are left to the garbage
+	 *            collector.
+	 * @param sizeClasses
+	 *            the capacities, in ascending order, of the buffers handed out
+	 *            by this pool.
+	 */
+	public BufferPool( int slabSize, int maximumFree, int... sizeClasses ) {
+		this( slabSize, repeat( maximumFree, sizeClasses.length ), sizeClasses );
+	}
+
+	private BufferPool( int slabSize, int [] maximumFree, int [] sizeClasses ) {
+		if( sizeClasses.length <= 0 ) {
+			throw new IllegalArgumentException();
+		}
+		this.slabSize = slabSize;
+		this.sizeClasses = new SizeClass [sizeClasses.length];
+		for( int i = 0; i < sizeClasses.length; i++ ) {
+			if( i > 0 && sizeClasses[i] <= sizeClasses[i - 1] ) {
+				throw new IllegalArgumentException();
+			}
+			this.sizeClasses[i] = new SizeClass( sizeClasses[i], maximumFree[i] );
+		}
+	}
+
+	/**
+	 * @return a cleared buffer of {@link #DEFAULT_SEGMENT_SIZE} bytes, or of
+	 *         the smallest size class able to hold that many.
+	 */
+	public ByteBuffer allocate() {
+		return allocate( DEFAULT_SEGMENT_SIZE );
+	}
+
+	/**
+	 * @param size
+	 *            the minimum capacity of the buffer.
+	 * @return a cleared buffer from the smallest size class that can hold
+	 *         {@code size} bytes, either recycled or newly carved out of a
+	 *         slab.
+	 */
+	public ByteBuffer allocate( int size ) {
+
+		SizeClass sizeClass = sizeClassFor( size );
+		ByteBuffer buffer;
+
+		if( sizeClass == null ) {
+			buffer = ByteBuffer.allocateDirect( size );
+		} else {
+			buffer = sizeClass.free.poll();
+			if( buffer != null ) {
+				sizeClass.freeCount.decrementAndGet();
+				free.decrementAndGet();
+				buffer.clear();
+			} else {
+				buffer = allocateSlab( sizeClass );
+			}
+		}
+
+		int count = borrowed.incrementAndGet();
+		int peak = peakBorrowed.get();
+		while( count > peak && !peakBorrowed.compareAndSet( peak, count ) ) {
+			peak = peakBorrowed.get();
+		}
+
+		return buffer;
+
+	}
+
+	/**
+	 * Carves a new slab into buffers of the given size class, keeps all but one
+	 * of them on the free list, and returns the remaining one.
+	 */
+	private ByteBuffer allocateSlab( SizeClass sizeClass ) {
+
+		int count = Math.max( 1, slabSize / sizeClass.size );
+		ByteBuffer slab = ByteBuffer.allocateDirect( count * sizeClass.size );
+
+		for( int i = 1; i < count; i++ ) {
+			slab.limit( ( i + 1 ) * sizeClass.size );
+			slab.position( i * sizeClass.size );
+			sizeClass.free.offer( slab.slice() );
+			sizeClass.freeCount.incrementAndGet();
+			free.incrementAndGet();
+		}
+
+		slab.clear();
+		slab.limit( sizeClass.size );
+
+		return slab.slice();
+
+	}
+
+	/**
+	 * @return the number of buffers currently lent out by this pool.
+	 */
+	public int getBorrowedCount() {
+		return borrowed.get();
+	}
+
+	/**
+	 * @return the number of buffers waiting on this pool's free lists.
+	 */
+	public int getFreeCount() {
+		return free.get();
+	}
+
+	/**
+	 * @return the largest number of buffers that have been lent out by this
+	 *         pool at the same time.
+	 */
+	public int getHighWatermark() {
+		return peakBorrowed.get();
+	}
+
+	/**
+	 * Returns a buffer to this pool. The caller must not touch the buffer
+	 * afterwards.
+	 *
+	 * @param buffer
+	 *            a buffer previously obtained from this pool.
+	 */
+	public void release( ByteBuffer buffer ) {
+
+		if( buffer == null ) {
+			return;
+		}
+
+		borrowed.decrementAndGet();
+
+		SizeClass sizeClass = sizeClassFor( buffer.capacity() );
+
+		if( sizeClass == null || sizeClass.size != buffer.capacity() ) {
+			return;
+		}
+
+		if( sizeClass.freeCount.incrementAndGet() > sizeClass.maximumFree ) {
+			sizeClass.freeCount.decrementAndGet();
+			return;
+		}
+
+		buffer.clear();
+		sizeClass.free.offer( buffer );
+		free.incrementAndGet();
+
+	}
+
+	private SizeClass sizeClassFor( int size ) {
+		for( int i = 0; i < sizeClasses.length; i++ ) {
+			if( sizeClasses[i].size >= size ) {
+				return sizeClasses[i];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%s [borrowed=%d free=%d high=%d]", BufferPool.class.getSimpleName(), Integer.valueOf( getBorrowedCount() ), Integer.valueOf( getFreeCount() ), Integer.valueOf( getHighWatermark() ) );
+	}
+
+}
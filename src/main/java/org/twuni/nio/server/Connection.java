@@ -3,9 +3,36 @@ package org.twuni.nio.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.twuni.Logger;
 
+/**
+ * A connection couples a client socket with the {@link Dispatcher} that
+ * services it. Outbound data is queued in segments borrowed from the
+ * dispatcher's {@link BufferPool}, so writes never overflow and never require a
+ * large buffer per connection. The queue is drained with gathering writes.
+ * <p>
+ * Once the amount of queued data reaches the high watermark, the connection
+ * reports itself as not {@link #isWritable() writable} until it has been
+ * drained down to the low watermark. Writes are still accepted in the meantime;
+ * the watermarks only tell producers when to hold back.
+ * </p>
+ * <p>
+ * The outbound queue belongs to the dispatcher's thread. Bytes written from
+ * any other thread are posted to the dispatcher's mailbox and queued by the
+ * dispatcher itself, so the queue is never touched from two threads and
+ * writing takes no locks. They count towards the watermarks as soon as they
+ * are written, though.
+ * </p>
+ * <p>
+ * Reading from a connection may likewise be {@link #suspendReading()
+ * suspended}, so that a peer producing data faster than it can be delivered is
+ * left to block on its own socket instead of filling up the server's memory.
+ * </p>
+ */
 public abstract class Connection implements Writable {
 
 	private static Logger defaultLogger() {
@@ -13,111 +40,353 @@ public abstract class Connection implements Writable {
 	}
 
 	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+	public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
 
 	private final SocketChannel client;
-	private final Dispatcher dispatcher;
+	private volatile Dispatcher dispatcher;
 	private final EventHandler eventHandler;
-	private final ByteBuffer inputBuffer;
-	private final ByteBuffer outputBuffer;
+	private final int inputBufferSize;
+	private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
 	private final Logger log;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicInteger readSuspensions = new AtomicInteger();
+	private final AtomicInteger pendingBytes = new AtomicInteger();
+	private volatile int lowWatermark;
+	private volatile int highWatermark;
+	private volatile boolean writable = true;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile long lastRead = lastActivity;
 
 	public Connection( SocketChannel client, Dispatcher dispatcher, EventHandler eventHandler ) {
-		this( client, dispatcher, eventHandler, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE );
+		this( client, dispatcher, eventHandler, DEFAULT_BUFFER_SIZE, DEFAULT_HIGH_WATERMARK );
 	}
 
 	public Connection( SocketChannel client, Dispatcher dispatcher, EventHandler eventHandler, int inputBufferSize, int outputBufferSize ) {
 		this( client, dispatcher, eventHandler, inputBufferSize, outputBufferSize, defaultLogger() );
 	}
 
+	/**
+	 * @param client
+	 *            the client socket.
+	 * @param dispatcher
+	 *            the dispatcher that services this connection.
+	 * @param eventHandler
+	 *            the protocol-specific event interpreter and emitter.
+	 * @param inputBufferSize
+	 *            the size of the buffer to borrow from the dispatcher's
+	 *            {@link BufferPool} each time data is read.
+	 * @param outputBufferSize
+	 *            the high watermark, in bytes, of the outbound queue. The low
+	 *            watermark is set to half of this.
+	 * @param logger
+	 *            the logger implementation to use for debugging.
+	 */
 	public Connection( SocketChannel client, Dispatcher dispatcher, EventHandler eventHandler, int inputBufferSize, int outputBufferSize, Logger logger ) {
 		this.client = client;
 		this.dispatcher = dispatcher;
 		this.eventHandler = eventHandler;
-		inputBuffer = ByteBuffer.allocateDirect( inputBufferSize );
-		outputBuffer = ByteBuffer.allocateDirect( outputBufferSize );
+		this.inputBufferSize = inputBufferSize;
+		lowWatermark = outputBufferSize / 2;
+		highWatermark = outputBufferSize;
 		log = logger;
 	}
 
-	public void cleanup() {
+	/**
+	 * Copies the given bytes onto the end of the outbound queue. This must
+	 * only be called by the thread that owns this connection's output.
+	 */
+	void append( byte [] buffer, int offset, int length ) {
+
+		BufferPool pool = dispatcher.getBufferPool();
+
+		while( length > 0 ) {
+
+			ByteBuffer tail = output.peekLast();
 
-		ByteBuffer in = getInputBuffer();
-		ByteBuffer out = getOutputBuffer();
-		int inSize = in.capacity();
-		int outSize = out.capacity();
-		int size = inSize < outSize ? outSize : inSize;
-		byte [] zeroes = new byte [size];
+			if( tail == null || tail.limit() == tail.capacity() ) {
+				tail = pool.allocate();
+				tail.limit( 0 );
+				output.addLast( tail );
+			}
+
+			// Segments are kept ready for reading, so open up the free space
+			// after the queued bytes, fill it, then restore the read window.
+			int position = tail.position();
+			tail.position( tail.limit() );
+			tail.limit( tail.capacity() );
+			int count = Math.min( length, tail.remaining() );
+			tail.put( buffer, offset, count );
+			tail.limit( tail.position() );
+			tail.position( position );
+
+			offset += count;
+			length -= count;
 
-		synchronized( in ) {
-			in.clear();
-			in.put( zeroes, 0, in.limit() );
 		}
 
-		synchronized( out ) {
-			out.clear();
-			out.put( zeroes, 0, out.limit() );
+	}
+
+	/**
+	 * Returns every buffer still held by this connection to the pool. The
+	 * buffers are released by the dispatcher's thread, so this may be called
+	 * from any thread.
+	 */
+	public void cleanup() {
+		dispatcher.discard( this );
+	}
+
+	/**
+	 * Closes the underlying channel and notifies the dispatcher and event
+	 * handler that this connection is gone. Only the first call has any
+	 * effect, so it is safe to call this from every place that detects a
+	 * disconnect.
+	 */
+	public void close() {
+		if( !closed.compareAndSet( false, true ) ) {
+			return;
+		}
+		try {
+			client.close();
+		} catch( IOException exception ) {
+			eventHandler.onException( exception );
 		}
+		dispatcher.unregister( this );
+		eventHandler.onDisconnected( this );
+	}
 
+	/**
+	 * Moves the unsent tail of a partially written segment to the front of the
+	 * segment, so that subsequent writes can make use of its full capacity.
+	 * Only the last segment is ever appended to, so only a lone segment needs
+	 * to be compacted.
+	 */
+	private void compact() {
+		ByteBuffer head = output.peekFirst();
+		if( head != null && output.size() == 1 && head.position() > 0 ) {
+			head.compact();
+			head.flip();
+		}
 	}
 
+	/**
+	 * Releases every queued segment back to the pool. This must only be
+	 * called by the thread that owns this connection's output.
+	 */
+	void discardOutput() {
+		BufferPool pool = dispatcher.getBufferPool();
+		while( !output.isEmpty() ) {
+			pool.release( output.pollFirst() );
+		}
+		pendingBytes.set( 0 );
+		writable = true;
+	}
+
+	/**
+	 * Writes the outbound queue to the socket with gathering writes for as
+	 * long as the socket accepts data, and returns fully written segments to
+	 * the pool. Whatever the socket does not accept stays queued and is retried
+	 * on the next flush, so a partial write never loses data. Once the queue is
+	 * empty, this connection stops asking its dispatcher for write readiness.
+	 * <p>
+	 * This must only be called by the dispatcher's thread.
+	 * </p>
+	 *
+	 * @return the number of bytes written, which is zero if the socket's send
+	 *         buffer is full.
+	 * @throws IOException
+	 *             if the socket could not be written to.
+	 */
 	public int flush() throws IOException {
-		ByteBuffer buffer = getOutputBuffer();
-		buffer.flip();
-		if( !buffer.hasRemaining() ) {
-			return 0;
+
+		int bytesWritten = 0;
+		BufferPool pool = dispatcher.getBufferPool();
+
+		while( !output.isEmpty() ) {
+			ByteBuffer [] segments = output.toArray( new ByteBuffer [output.size()] );
+			long count = getClient().write( segments );
+			while( !output.isEmpty() && !output.peekFirst().hasRemaining() ) {
+				pool.release( output.pollFirst() );
+			}
+			if( count <= 0 ) {
+				// The socket's send buffer is full. Keep the rest for
+				// when the socket becomes writable again.
+				break;
+			}
+			bytesWritten += count;
+		}
+
+		compact();
+
+		if( bytesWritten > 0 ) {
+			markActive( bytesWritten );
+			int remaining = pendingBytes.addAndGet( -bytesWritten );
+			log.info( "SEND C/%s [%d/%d bytes]", id(), Integer.valueOf( bytesWritten ), Integer.valueOf( remaining + bytesWritten ) );
+			if( !writable && remaining <= lowWatermark ) {
+				writable = true;
+			}
 		}
-		byte [] b = new byte [buffer.remaining()];
-		buffer.get( b, 0, b.length );
-		log.info( "SEND C/%s [%d bytes] %s", id(), Integer.valueOf( b.length ), new String( b, 0, b.length ) );
-		buffer.flip();
-		int bytesWritten = getClient().write( buffer );
-		buffer.clear();
-		if( bytesWritten <= 0 ) {
-			getClient().close();
-			eventHandler.onDisconnected( this );
+
+		if( output.isEmpty() ) {
+			dispatcher.cancelWrite( this );
 		}
+
 		return bytesWritten;
+
 	}
 
 	public SocketChannel getClient() {
 		return client;
 	}
 
+	public Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+
 	public EventHandler getEventHandler() {
 		return eventHandler;
 	}
 
-	public ByteBuffer getInputBuffer() {
-		return inputBuffer;
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+
+	/**
+	 * @return the time, in milliseconds since the epoch, at which data was
+	 *         last read from or written to this connection.
+	 */
+	public long getLastActivity() {
+		return lastActivity;
 	}
 
-	public ByteBuffer getOutputBuffer() {
-		return outputBuffer;
+	/**
+	 * @return the time, in milliseconds since the epoch, at which data was
+	 *         last read from this connection.
+	 */
+	public long getLastRead() {
+		return lastRead;
+	}
+
+	/**
+	 * @return the number of bytes written to this connection that have not yet
+	 *         been written to the socket.
+	 */
+	public int getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes that may still be queued before this
+	 *         connection reaches its high watermark.
+	 */
+	public int getWritableBytes() {
+		return Math.max( 0, highWatermark - pendingBytes.get() );
+	}
+
+	public boolean hasPendingOutput() {
+		return getPendingBytes() > 0;
 	}
 
 	public String id() {
 		return Integer.toHexString( hashCode() );
 	}
 
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * @return {@code true} if reading from this connection has been suspended
+	 *         more times than it has been resumed.
+	 */
+	public boolean isReadSuspended() {
+		return readSuspensions.get() > 0;
+	}
+
+	/**
+	 * @return {@code false} if the outbound queue has reached the high
+	 *         watermark and has not yet been drained down to the low
+	 *         watermark, or {@code true} otherwise.
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	void markActive( long bytes ) {
+		lastActivity = System.currentTimeMillis();
+		dispatcher.countBytes( bytes );
+	}
+
+	void markRead( long bytes ) {
+		markActive( bytes );
+		lastRead = lastActivity;
+	}
+
+	/**
+	 * Undoes one call to {@link #suspendReading()}. Once every suspension has
+	 * been undone, the dispatcher starts reading from this connection again.
+	 */
+	public void resumeReading() {
+		if( readSuspensions.decrementAndGet() == 0 ) {
+			dispatcher.updateReadInterest( this );
+		}
+	}
+
+	void setDispatcher( Dispatcher dispatcher ) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * @param lowWatermark
+	 *            the number of queued bytes at or below which this connection
+	 *            becomes writable again.
+	 * @param highWatermark
+	 *            the number of queued bytes at or above which this connection
+	 *            stops being writable.
+	 */
+	public void setWatermarks( int lowWatermark, int highWatermark ) {
+		if( lowWatermark < 0 || highWatermark < lowWatermark ) {
+			throw new IllegalArgumentException();
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
 	public abstract Object state();
 
+	/**
+	 * Stops the dispatcher from reading from this connection until
+	 * {@link #resumeReading()} has been called as many times as this method.
+	 * Data sent by the peer in the meantime is left in the socket's receive
+	 * buffer, and eventually the peer's writes block.
+	 */
+	public void suspendReading() {
+		if( readSuspensions.getAndIncrement() == 0 ) {
+			dispatcher.updateReadInterest( this );
+		}
+	}
+
 	@Override
 	public int write( byte [] buffer ) {
 		return write( buffer, 0, buffer.length );
 	}
 
+	/**
+	 * Queues the given bytes to be written to the socket. This may be called
+	 * from any thread; bytes written from a thread other than the
+	 * dispatcher's are copied into its mailbox and queued from there.
+	 *
+	 * @return the number of bytes queued, or -1 if this connection has
+	 *         already been closed.
+	 */
 	@Override
 	public int write( byte [] buffer, int offset, int length ) {
-		// FIXME: This could potentially throw a buffer overflow exception.
-		// Should that be handled
-		// here?
-		ByteBuffer out = getOutputBuffer();
-		if( out.limit() <= 0 ) {
-			out.limit( out.capacity() );
+		if( closed.get() ) {
+			return -1;
 		}
-		synchronized( out ) {
-			out.put( buffer, offset, length );
+		if( pendingBytes.addAndGet( length ) >= highWatermark ) {
+			writable = false;
 		}
-		dispatcher.requestWrite( this );
+		dispatcher.deliver( this, buffer, offset, length );
 		return length;
 	}
 
@@ -5,80 +5,444 @@ import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.twuni.Logger;
+import org.twuni.nio.server.TimingWheel.Timeout;
 
 /**
- * A dispatcher dispatches events to {@link Connection}s.
+ * A dispatcher dispatches events to {@link Connection}s. Each dispatcher is
+ * meant to own its {@link Selector} and to be run by exactly one thread, so
+ * that every connection registered with it is serviced by the same event loop
+ * for its whole life.
+ * <p>
+ * Work that must happen on the dispatcher's thread, such as registering a
+ * connection or changing the operations it is interested in, is submitted to
+ * {@link #execute(Runnable)}. Other threads place it on a lock-free queue that
+ * the dispatcher drains after every {@link Selector#select()}, and only the
+ * first submission after each drain wakes up the selector. Submissions from
+ * the dispatcher's own thread run immediately.
+ * </p>
+ * <p>
+ * Bytes written to a connection from another thread are posted to the
+ * mailbox of the dispatcher that owns it, the same way, and the dispatcher
+ * queues everything in its mailbox on its connections in one batch per pass
+ * through the event loop. A connection's outbound queue is therefore only
+ * ever touched by its own dispatcher's thread.
+ * </p>
  */
-public class Dispatcher implements Runnable, Closeable {
+public class Dispatcher implements Runnable, Closeable, Executor {
+
+	private static class Delivery {
+
+		final Connection connection;
+		final byte [] bytes;
+
+		public Delivery( Connection connection, byte [] bytes ) {
+			this.connection = connection;
+			this.bytes = bytes;
+		}
+
+	}
+
+	public static final int DEFAULT_READ_BUDGET = 16;
+	public static final int DEFAULT_BYTE_BUDGET = 64 * 1024;
 
 	private static Logger defaultLogger() {
 		return new Logger( Dispatcher.class.getName() );
 	}
 
 	private final Logger log;
-	private final Object guard = new Object();
 	private final Selector selector;
 	private final EventHandler eventHandler;
-	private boolean running;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<Delivery> mailbox = new ConcurrentLinkedQueue<Delivery>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final BufferPool bufferPool;
+	private final TimingWheel timers = new TimingWheel();
+	private volatile Thread thread;
+	private volatile boolean running;
+	private volatile int readBudget = DEFAULT_READ_BUDGET;
+	private volatile int byteBudget = DEFAULT_BYTE_BUDGET;
+
+	public Dispatcher( EventHandler eventHandler ) throws IOException {
+		this( SelectorProvider.provider().openSelector(), eventHandler );
+	}
 
 	public Dispatcher( Selector selector, EventHandler eventHandler ) {
 		this( selector, eventHandler, defaultLogger() );
 	}
 
+	public Dispatcher( Selector selector, EventHandler eventHandler, BufferPool bufferPool ) {
+		this( selector, eventHandler, bufferPool, defaultLogger() );
+	}
+
 	public Dispatcher( Selector selector, EventHandler eventHandler, Logger logger ) {
+		this( selector, eventHandler, new BufferPool(), logger );
+	}
+
+	/**
+	 * @param bufferPool
+	 *            the pool this dispatcher borrows read and write buffers
+	 *            from. It should not be shared with other dispatchers.
+	 */
+	public Dispatcher( Selector selector, EventHandler eventHandler, BufferPool bufferPool, Logger logger ) {
 		this.selector = selector;
 		this.eventHandler = eventHandler;
+		this.bufferPool = bufferPool;
 		log = logger;
 	}
 
+	/**
+	 * Takes over a connection migrated from another dispatcher, registering
+	 * it with this dispatcher's selector without notifying the event handler,
+	 * which already knows about the connection.
+	 */
+	void adopt( final Connection connection ) {
+		connectionCount.incrementAndGet();
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					connection.getClient().register( selector, ops( connection ), connection );
+				} catch( ClosedChannelException exception ) {
+					connection.close();
+				}
+			}
+
+		} );
+	}
+
+	/**
+	 * Stops asking for write readiness on behalf of the given connection. This
+	 * is called once a connection's outbound queue is empty, so that the
+	 * event loop does not spin on a socket that is always writable.
+	 *
+	 * @param connection
+	 *            a connection with nothing left to write.
+	 */
+	public void cancelWrite( final Connection connection ) {
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				interest( connection, SelectionKey.OP_WRITE, false );
+			}
+
+		} );
+	}
+
 	@Override
 	public void close() throws IOException {
 		log.info( "CLOSE" );
 		running = false;
+		selector.wakeup();
+	}
+
+	void countBytes( long bytes ) {
+		byteCount.addAndGet( bytes );
+	}
+
+	void countConnection() {
+		connectionCount.incrementAndGet();
+	}
+
+	/**
+	 * Queues the given bytes on the given connection, which this dispatcher
+	 * owns. Called from this dispatcher's thread, this queues them right away,
+	 * after anything still in the mailbox. Called from any other thread, it
+	 * copies them into the mailbox.
+	 */
+	void deliver( Connection connection, byte [] buffer, int offset, int length ) {
+		if( inEventLoop() ) {
+			deliverMail();
+			connection.append( buffer, offset, length );
+			requestWrite( connection );
+			return;
+		}
+		post( new Delivery( connection, Arrays.copyOfRange( buffer, offset, offset + length ) ) );
+	}
+
+	/**
+	 * Queues everything in the mailbox on the connections it was written to.
+	 * Deliveries for a connection that has since moved to another dispatcher
+	 * are passed on to that dispatcher's mailbox.
+	 */
+	private void deliverMail() {
+		for( Delivery delivery = mailbox.poll(); delivery != null; delivery = mailbox.poll() ) {
+			Connection connection = delivery.connection;
+			if( connection.isClosed() ) {
+				continue;
+			}
+			Dispatcher owner = connection.getDispatcher();
+			if( owner != this ) {
+				owner.post( delivery );
+				continue;
+			}
+			connection.append( delivery.bytes, 0, delivery.bytes.length );
+			requestWrite( connection );
+		}
+	}
+
+	/**
+	 * Releases the outbound queue of the given connection, on this
+	 * dispatcher's thread.
+	 */
+	void discard( final Connection connection ) {
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				connection.discardOutput();
+			}
+
+		} );
+	}
+
+	/**
+	 * Runs the given task on this dispatcher's thread. If called from that
+	 * thread, the task runs before this method returns. Otherwise, it is
+	 * queued and run after the selector's next wakeup.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	@Override
+	public void execute( Runnable task ) {
+		if( inEventLoop() ) {
+			task.run();
+			return;
+		}
+		tasks.offer( task );
+		if( wakeupPending.compareAndSet( false, true ) ) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Writes as much of the given connection's outbound queue as its socket
+	 * accepts right away. This must only be called by this dispatcher's
+	 * thread, on a connection this dispatcher owns.
+	 *
+	 * @throws IOException
+	 *             if the socket could not be written to.
+	 */
+	public void flush( Connection connection ) throws IOException {
+		connection.flush();
+	}
+
+	/**
+	 * @return the pool from which connections serviced by this dispatcher
+	 *         borrow their buffers.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return the maximum number of bytes read from a single connection on
+	 *         one pass through the event loop.
+	 */
+	public int getByteBudget() {
+		return byteBudget;
+	}
+
+	/**
+	 * @return the total number of bytes read and written by connections
+	 *         serviced by this dispatcher.
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * @return the number of connections that have been handed to this
+	 *         dispatcher and have not yet been closed, including those whose
+	 *         registration is still pending.
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * @return the total number of readiness events handled by this
+	 *         dispatcher.
+	 */
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	/**
+	 * @return the maximum number of reads from a single connection on one
+	 *         pass through the event loop.
+	 */
+	public int getReadBudget() {
+		return readBudget;
+	}
+
+	/**
+	 * @return {@code true} if the calling thread is the one running this
+	 *         dispatcher.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	private void interest( Connection connection, int ops, boolean enabled ) {
+		SelectionKey key = connection.getClient().keyFor( selector );
+		if( key == null || !key.isValid() ) {
+			return;
+		}
+		int current = key.interestOps();
+		int next = enabled ? current | ops : current & ~ops;
+		if( next != current ) {
+			key.interestOps( next );
+		}
+	}
+
+	/**
+	 * Moves up to {@code count} connections that have been idle for at least
+	 * {@code idleTime} milliseconds, and have nothing left to write, from this
+	 * dispatcher to the given one. Connections with any pending output are
+	 * never moved, so no write is ever lost to the migration.
+	 */
+	void migrate( final Dispatcher target, final int count, final long idleTime ) {
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+
+				long now = System.currentTimeMillis();
+				int migrated = 0;
+
+				for( SelectionKey key : selector.keys() ) {
+
+					if( migrated >= count ) {
+						break;
+					}
+
+					Connection connection = (Connection) key.attachment();
+
+					if( !key.isValid() || connection.hasPendingOutput() || connection.isReadSuspended() || now - connection.getLastActivity() < idleTime ) {
+						continue;
+					}
+
+					key.cancel();
+					connectionCount.decrementAndGet();
+					connection.setDispatcher( target );
+					target.adopt( connection );
+					migrated++;
+
+				}
+
+				if( migrated > 0 ) {
+					log.info( "MIGRATE %d", Integer.valueOf( migrated ) );
+				}
+
+			}
+
+		} );
+	}
+
+	private int ops( Connection connection ) {
+		int ops = connection.isReadSuspended() ? 0 : SelectionKey.OP_READ;
+		if( connection.hasPendingOutput() ) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
 	}
 
 	protected void onException( Throwable exception ) {
 		log.info( "ERROR T/%s %s", exception.getClass().getName(), exception.getLocalizedMessage() );
 	}
 
-	public void register( Connection connection ) throws ClosedChannelException {
-		log.info( "REGISTER T/%s C/%s", connection.getClass().getName(), connection.id() );
-		synchronized( guard ) {
+	private void post( Delivery delivery ) {
+		mailbox.offer( delivery );
+		if( wakeupPending.compareAndSet( false, true ) ) {
 			selector.wakeup();
-			connection.getClient().register( selector, SelectionKey.OP_READ, connection );
 		}
-		eventHandler.onConnected( connection );
 	}
 
-	public void requestWrite( Connection connection ) {
+	/**
+	 * Hands the given connection off to this dispatcher. This method may be
+	 * called from any thread and does not block: the connection is registered
+	 * with this dispatcher's selector by the dispatcher's own thread.
+	 *
+	 * @param connection
+	 *            the connection to be serviced by this dispatcher.
+	 * @throws ClosedChannelException
+	 *             if the connection's channel has already been closed.
+	 */
+	public void register( final Connection connection ) throws ClosedChannelException {
+		if( !connection.getClient().isOpen() ) {
+			throw new ClosedChannelException();
+		}
+		connectionCount.incrementAndGet();
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				log.info( "REGISTER T/%s C/%s", connection.getClass().getName(), connection.id() );
+				try {
+					connection.getClient().register( selector, ops( connection ), connection );
+				} catch( ClosedChannelException exception ) {
+					onException( exception );
+					connection.close();
+					return;
+				}
+				eventHandler.onConnected( connection );
+			}
+
+		} );
+	}
+
+	public void requestWrite( final Connection connection ) {
 		SelectionKey key = connection.getClient().keyFor( selector );
-		synchronized( guard ) {
-			selector.wakeup();
-			key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+		if( key != null && ( !key.isValid() || ( key.interestOps() & SelectionKey.OP_WRITE ) != 0 ) ) {
+			return;
 		}
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				interest( connection, SelectionKey.OP_WRITE, true );
+			}
+
+		} );
 	}
 
 	@Override
 	public void run() {
 
+		thread = Thread.currentThread();
 		running = true;
 
 		while( running ) {
 
-			synchronized( guard ) {
-				// This suspends the thread until the guard becomes unlocked.
-			}
-
 			try {
-				selector.select();
+				selector.select( timers.getTimeUntilNextTick( System.currentTimeMillis() ) );
 			} catch( IOException exception ) {
 				onException( exception );
 				continue;
 			}
 
+			wakeupPending.set( false );
+			runTasks();
+			deliverMail();
+			timers.advance( System.currentTimeMillis() );
+
 			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
 			while( iterator.hasNext() ) {
@@ -88,24 +452,117 @@ public class Dispatcher implements Runnable, Closeable {
 
 				Connection connection = (Connection) key.attachment();
 
+				eventCount.incrementAndGet();
+
 				if( !connection.getClient().isConnected() || !connection.getClient().isOpen() ) {
-					eventHandler.onDisconnected( connection );
-					key.cancel();
+					connection.close();
 					continue;
 				}
 
-				if( key.isValid() ) {
-					if( key.isReadable() ) {
-						eventHandler.onReadRequested( connection );
-					} else if( key.isWritable() ) {
-						eventHandler.onWriteRequested( connection );
-					}
+				// Flush first, so that a connection which is always readable
+				// cannot starve its own writes.
+				if( key.isValid() && key.isWritable() ) {
+					eventHandler.onWriteRequested( connection );
 				}
 
+				if( key.isValid() && key.isReadable() ) {
+					eventHandler.onReadRequested( connection );
+				}
+
+			}
+
+		}
+
+		thread = null;
+
+		try {
+			selector.close();
+		} catch( IOException exception ) {
+			onException( exception );
+		}
+
+	}
+
+	private void runTasks() {
+		for( Runnable task = tasks.poll(); task != null; task = tasks.poll() ) {
+			try {
+				task.run();
+			} catch( RuntimeException exception ) {
+				onException( exception );
 			}
+		}
+	}
 
+	/**
+	 * @param readBudget
+	 *            the maximum number of reads from a single connection on one
+	 *            pass through the event loop.
+	 * @param byteBudget
+	 *            the maximum number of bytes read from a single connection on
+	 *            one pass through the event loop. The read that crosses this
+	 *            budget is the last one.
+	 */
+	public void setBudgets( int readBudget, int byteBudget ) {
+		if( readBudget <= 0 || byteBudget <= 0 ) {
+			throw new IllegalArgumentException();
 		}
+		this.readBudget = readBudget;
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * Runs the given task on this dispatcher's thread once the given delay has
+	 * elapsed. This method may be called from any thread.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay, in the given unit.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return a handle with which the task may be cancelled.
+	 */
+	public Timeout schedule( final Runnable task, long delay, TimeUnit unit ) {
+		final Timeout timeout = new Timeout( new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch( RuntimeException exception ) {
+					onException( exception );
+				}
+			}
+
+		}, System.currentTimeMillis() + Math.max( 0, unit.toMillis( delay ) ) );
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				timers.add( timeout );
+			}
+
+		} );
+		return timeout;
+	}
+
+	void unregister( Connection connection ) {
+		connectionCount.decrementAndGet();
+	}
+
+	/**
+	 * Starts or stops reading from the given connection, according to whether
+	 * its reads are currently {@link Connection#isReadSuspended() suspended}.
+	 */
+	void updateReadInterest( final Connection connection ) {
+		execute( new Runnable() {
+
+			@Override
+			public void run() {
+				interest( connection, SelectionKey.OP_READ, !connection.isReadSuspended() );
+			}
 
+		} );
 	}
 
 }
@@ -3,32 +3,79 @@ package org.twuni.nio.server;
 import java.io.IOException;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * A dispatcher pool shards connections across a fixed number of
+ * {@link Dispatcher}s, each of which owns a private {@link Selector} and runs on
+ * its own thread. By default, the pool has one dispatcher per available
+ * processor.
+ * <p>
+ * Each dispatcher's load is measured from its open connections and from the
+ * rate of events and bytes it has recently handled, so it goes down again as
+ * connections close or fall silent. Optionally, idle connections can be
+ * migrated from the most loaded dispatcher to the least loaded one in the
+ * background.
+ * </p>
+ */
 public class DispatcherPool implements DispatcherProvider {
 
-	public static final int DEFAULT_SIZE = 5;
+	public static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
 
-	static class Envelope implements Comparable<Envelope> {
+	static class Envelope {
 
 		public final Dispatcher dispatcher;
 		public final int id;
-		public int load;
-		public boolean running;
+		public final AtomicBoolean running = new AtomicBoolean();
 		private final String label;
+		private long sampledAt;
+		private long sampledEvents;
+		private long sampledBytes;
+		private double eventRate;
+		private double byteRate;
 
 		public Envelope( int id, Dispatcher dispatcher ) {
 			this.id = id;
 			this.dispatcher = dispatcher;
-			this.load = 0;
-			this.running = false;
 			this.label = String.format( "%s %d", Envelope.class.getSimpleName(), Integer.valueOf( id ) );
+			sampledAt = System.currentTimeMillis();
 		}
 
-		@Override
-		public int compareTo( Envelope envelope ) {
-			return envelope != null ? load < envelope.load ? -1 : load > envelope.load ? 1 : 0 : -1;
+		/**
+		 * @return the load of this dispatcher, measured in connections: each
+		 *         open connection counts for one, as does every
+		 *         {@link DispatcherPool#EVENTS_PER_CONNECTION} events or
+		 *         {@link DispatcherPool#BYTES_PER_CONNECTION} bytes per second.
+		 */
+		public synchronized double load() {
+			return dispatcher.getConnectionCount() + eventRate / EVENTS_PER_CONNECTION + byteRate / BYTES_PER_CONNECTION;
+		}
+
+		/**
+		 * Updates the event and byte rates of this dispatcher, at most once
+		 * per {@link DispatcherPool#SAMPLE_INTERVAL}.
+		 */
+		public synchronized void sample( long now ) {
+			long elapsed = now - sampledAt;
+			if( elapsed < SAMPLE_INTERVAL ) {
+				return;
+			}
+			long events = dispatcher.getEventCount();
+			long bytes = dispatcher.getByteCount();
+			eventRate = ( events - sampledEvents ) * 1000.0 / elapsed;
+			byteRate = ( bytes - sampledBytes ) * 1000.0 / elapsed;
+			sampledEvents = events;
+			sampledBytes = bytes;
+			sampledAt = now;
+		}
+
+		public void start() {
+			if( running.compareAndSet( false, true ) ) {
+				new Thread( dispatcher, label ).start();
+			}
 		}
 
 		@Override
@@ -38,7 +85,33 @@ public class DispatcherPool implements DispatcherProvider {
 
 	}
 
-	private final Set<Envelope> pool = new TreeSet<Envelope>();
+	/**
+	 * The number of readiness events per second that weigh as much as one
+	 * open connection when comparing dispatcher loads.
+	 */
+	public static final double EVENTS_PER_CONNECTION = 10;
+
+	/**
+	 * The number of bytes per second that weigh as much as one open
+	 * connection when comparing dispatcher loads.
+	 */
+	public static final double BYTES_PER_CONNECTION = 16 * 1024;
+
+	/**
+	 * The minimum time, in milliseconds, between two samples of a
+	 * dispatcher's event and byte rates.
+	 */
+	public static final long SAMPLE_INTERVAL = 1000;
+
+	/**
+	 * The maximum number of connections moved off a dispatcher by a single
+	 * round of rebalancing.
+	 */
+	public static final int MAXIMUM_MIGRATIONS = 64;
+
+	private final List<Envelope> pool = new ArrayList<Envelope>();
+	private final Random random = new Random();
+	private Thread rebalancer;
 
 	public DispatcherPool( int size, EventHandler eventHandler ) throws IOException {
 		this( size, SelectorProvider.provider().openSelector(), eventHandler );
@@ -48,38 +121,175 @@ public class DispatcherPool implements DispatcherProvider {
 		this( DEFAULT_SIZE, SelectorProvider.provider().openSelector(), eventHandler );
 	}
 
-	public DispatcherPool( Selector selector, EventHandler eventHandler ) {
+	public DispatcherPool( EventHandler eventHandler, long maximumFreeBytes ) throws IOException {
+		this( DEFAULT_SIZE, SelectorProvider.provider().openSelector(), eventHandler, maximumFreeBytes );
+	}
+
+	public DispatcherPool( Selector selector, EventHandler eventHandler ) throws IOException {
 		this( DEFAULT_SIZE, selector, eventHandler );
 	}
 
-	public DispatcherPool( int size, Selector selector, EventHandler eventHandler ) {
+	/**
+	 * Creates a pool of {@code size} dispatchers. The given {@code selector} is
+	 * owned by the first dispatcher; every other dispatcher opens a private
+	 * selector from the same {@link SelectorProvider}, so no two event loops
+	 * ever contend for the same set of ready keys.
+	 *
+	 * @param size
+	 *            the number of dispatchers in this pool.
+	 * @param selector
+	 *            the selector to be owned by the first dispatcher.
+	 * @param eventHandler
+	 *            the protocol-specific event interpreter and emitter.
+	 * @throws IOException
+	 *             if a selector could not be opened for one of the
+	 *             dispatchers.
+	 */
+	public DispatcherPool( int size, Selector selector, EventHandler eventHandler ) throws IOException {
+		this( size, selector, eventHandler, BufferPool.DEFAULT_MAXIMUM_FREE_BYTES );
+	}
+
+	/**
+	 * Creates a pool of {@code size} dispatchers, as above, each with a
+	 * {@link BufferPool} of its own.
+	 *
+	 * @param maximumFreeBytes
+	 *            the maximum number of bytes each dispatcher's buffer pool may
+	 *            keep in free buffers.
+	 */
+	public DispatcherPool( int size, Selector selector, EventHandler eventHandler, long maximumFreeBytes ) throws IOException {
 		for( int i = 0; i < size; i++ ) {
-			pool.add( new Envelope( i, new Dispatcher( selector, eventHandler ) ) );
+			Selector s = i == 0 ? selector : selector.provider().openSelector();
+			pool.add( new Envelope( i, new Dispatcher( s, eventHandler, new BufferPool( maximumFreeBytes ) ) ) );
 		}
 	}
 
+	/**
+	 * Chooses a dispatcher by comparing the loads of two dispatchers picked at
+	 * random, and taking the less loaded of the two. This spreads connections
+	 * nearly as evenly as always taking the least loaded dispatcher, without
+	 * having to look at every dispatcher in the pool.
+	 */
 	@Override
 	public Dispatcher provideDispatcher() {
 
-		Envelope best = null;
+		int size = pool.size();
 
-		for( Envelope envelope : pool ) {
-			if( best == null || best.compareTo( envelope ) > 0 ) {
-				best = envelope;
+		if( size <= 0 ) {
+			return null;
+		}
+
+		int a = random.nextInt( size );
+		Envelope best = pool.get( a );
+
+		if( size > 1 ) {
+			int b = random.nextInt( size - 1 );
+			Envelope other = pool.get( b < a ? b : b + 1 );
+			long now = System.currentTimeMillis();
+			best.sample( now );
+			other.sample( now );
+			if( other.load() < best.load() ) {
+				best = other;
 			}
 		}
 
-		if( best != null ) {
-			if( !best.running ) {
-				new Thread( best.dispatcher, best.toString() ).start();
-				best.running = true;
+		best.start();
+
+		return best.dispatcher;
+
+	}
+
+	/**
+	 * Moves idle connections from the most loaded dispatcher in this pool to
+	 * the least loaded one, if their loads differ by more than a quarter.
+	 *
+	 * @param idleTime
+	 *            the minimum time, in milliseconds, since a connection last
+	 *            read or wrote any data for it to be eligible for migration.
+	 */
+	public void rebalance( long idleTime ) {
+
+		Envelope hottest = null;
+		Envelope coolest = null;
+		long now = System.currentTimeMillis();
+
+		for( Envelope envelope : pool ) {
+			if( !envelope.running.get() ) {
+				continue;
+			}
+			envelope.sample( now );
+			if( hottest == null || envelope.load() > hottest.load() ) {
+				hottest = envelope;
 			}
-			best.load++;
-			return best.dispatcher;
+			if( coolest == null || envelope.load() < coolest.load() ) {
+				coolest = envelope;
+			}
+		}
+
+		if( hottest == null || hottest == coolest || hottest.load() <= coolest.load() * 1.25 ) {
+			return;
+		}
+
+		int count = ( hottest.dispatcher.getConnectionCount() - coolest.dispatcher.getConnectionCount() ) / 2;
+
+		if( count > 0 ) {
+			hottest.dispatcher.migrate( coolest.dispatcher, Math.min( count, MAXIMUM_MIGRATIONS ), idleTime );
+		}
+
+	}
+
+	/**
+	 * Sets the per-connection budgets of every dispatcher in this pool.
+	 *
+	 * @see Dispatcher#setBudgets(int, int)
+	 */
+	public void setBudgets( int readBudget, int byteBudget ) {
+		for( Envelope envelope : pool ) {
+			envelope.dispatcher.setBudgets( readBudget, byteBudget );
 		}
+	}
+
+	/**
+	 * Starts a background thread that calls {@link #rebalance(long)}
+	 * periodically.
+	 *
+	 * @param period
+	 *            the time, in milliseconds, between two rounds of
+	 *            rebalancing.
+	 * @param idleTime
+	 *            the minimum time, in milliseconds, since a connection last
+	 *            read or wrote any data for it to be eligible for migration.
+	 */
+	public synchronized void startRebalancing( final long period, final long idleTime ) {
+
+		stopRebalancing();
+
+		rebalancer = new Thread( String.format( "%s rebalancer", DispatcherPool.class.getSimpleName() ) ) {
 
-		return null;
+			@Override
+			public void run() {
+				while( !isInterrupted() ) {
+					try {
+						Thread.sleep( period );
+					} catch( InterruptedException exception ) {
+						break;
+					}
+					rebalance( idleTime );
+				}
+			}
+
+		};
+
+		rebalancer.setDaemon( true );
+		rebalancer.start();
 
 	}
 
+	public synchronized void stopRebalancing() {
+		if( rebalancer != null ) {
+			rebalancer.interrupt();
+			rebalancer = null;
+		}
+	}
+
 }
@@ -0,0 +1,56 @@
+package org.twuni.nio.server;
+
+import java.nio.charset.Charset;
+
+/**
+ * An encoded packet holds the UTF-8 encoding of a packet, so that a packet
+ * which is queued, retried, saved and restored is only ever serialized once.
+ */
+public class EncodedPacket {
+
+	private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * @return the given packet if it is already encoded, the given bytes if
+	 *         the packet is a byte array, or the UTF-8 encoding of the
+	 *         packet's string form otherwise.
+	 */
+	public static EncodedPacket encode( Object packet ) {
+		if( packet instanceof EncodedPacket ) {
+			return (EncodedPacket) packet;
+		}
+		if( packet instanceof byte [] ) {
+			return new EncodedPacket( (byte []) packet );
+		}
+		return new EncodedPacket( packet.toString().getBytes( UTF_8 ) );
+	}
+
+	private final byte [] bytes;
+
+	/**
+	 * @param bytes
+	 *            the UTF-8 encoding of a packet. The array is not copied, so
+	 *            it must not be modified afterwards.
+	 */
+	public EncodedPacket( byte [] bytes ) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return the encoded bytes of this packet. The array is shared, so it
+	 *         must not be modified.
+	 */
+	public byte [] getBytes() {
+		return bytes;
+	}
+
+	public int length() {
+		return bytes.length;
+	}
+
+	@Override
+	public String toString() {
+		return new String( bytes, UTF_8 );
+	}
+
+}
@@ -3,8 +3,10 @@ package org.twuni.nio.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 import org.twuni.Logger;
+import org.twuni.nio.server.TimingWheel.Timeout;
 import org.twuni.xmppt.util.Base64;
 
 public class EventHandler {
@@ -14,6 +16,7 @@ public class EventHandler {
 	}
 
 	private final Logger log;
+	private volatile long idleTimeout;
 
 	public EventHandler() {
 		this( defaultLogger() );
@@ -23,14 +26,48 @@ public class EventHandler {
 		log = logger;
 	}
 
+	/**
+	 * @return the number of milliseconds a connection may go without sending
+	 *         any data before it is considered idle, or zero if connections
+	 *         never time out.
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
 	public void onConnected( Connection connection ) {
 		log.info( "CONNECT C/%s", connection.id() );
+		if( idleTimeout > 0 ) {
+			watchIdle( connection, idleTimeout );
+		}
 	}
 
 	protected void onData( Connection connection, byte [] data ) {
 		log.info( "DATA C/%s %s", connection.id(), Base64.encodeBase64URLSafeString( data ) );
 	}
 
+	/**
+	 * Called with the bytes most recently read from the given connection,
+	 * between the buffer's position and limit. The buffer is borrowed from the
+	 * dispatcher's {@link BufferPool} and is only valid for the duration of
+	 * this call, so handlers that consume it in place must not keep a
+	 * reference to it.
+	 * <p>
+	 * By default, this copies the bytes into a new array and passes them on to
+	 * {@link #onData(Connection, byte[])}.
+	 * </p>
+	 *
+	 * @param connection
+	 *            the connection from which the bytes were read.
+	 * @param data
+	 *            the bytes that were read.
+	 */
+	protected void onData( Connection connection, ByteBuffer data ) {
+		byte [] b = new byte [data.remaining()];
+		data.get( b );
+		onData( connection, b );
+	}
+
 	public void onDisconnected( Connection connection ) {
 		log.info( "DISCONNECT C/%s", connection.id() );
 		connection.cleanup();
@@ -40,25 +77,62 @@ public class EventHandler {
 		log.info( "ERROR [%s] %s", "onException", exception.getClass().getSimpleName(), exception.getLocalizedMessage() );
 	}
 
+	/**
+	 * Called on the connection's dispatcher once nothing has been read from
+	 * the given connection for the {@link #getIdleTimeout() idle timeout}. By
+	 * default, this closes the connection.
+	 *
+	 * @param connection
+	 *            the idle connection.
+	 */
+	protected void onIdle( Connection connection ) {
+		log.info( "IDLE C/%s", connection.id() );
+		connection.close();
+	}
+
+	/**
+	 * Reads from the given connection until its socket is drained or the
+	 * dispatcher's {@link Dispatcher#getReadBudget() read} or
+	 * {@link Dispatcher#getByteBudget() byte} budget is used up, passing each
+	 * chunk to {@link #onData(Connection, ByteBuffer)}.
+	 */
 	public void onReadRequested( Connection connection ) {
 
-		ByteBuffer buffer = connection.getInputBuffer();
+		Dispatcher dispatcher = connection.getDispatcher();
+		BufferPool pool = dispatcher.getBufferPool();
+		ByteBuffer buffer = pool.allocate( connection.getInputBufferSize() );
 		SocketChannel client = connection.getClient();
+		int reads = dispatcher.getReadBudget();
+		int bytes = dispatcher.getByteBudget();
 
 		try {
-			buffer.clear();
-			int bytesRead = client.read( buffer );
-			if( bytesRead <= 0 ) {
-				connection.getClient().close();
-				onDisconnected( connection );
-				return;
+			for( int i = 0; i < reads && bytes > 0; i++ ) {
+				buffer.clear();
+				int bytesRead = client.read( buffer );
+				if( bytesRead < 0 ) {
+					connection.close();
+					return;
+				}
+				if( bytesRead == 0 ) {
+					// Nothing to read after all, such as when the key was
+					// still flagged ready from an earlier pass.
+					break;
+				}
+				connection.markRead( bytesRead );
+				bytes -= bytesRead;
+				// A read that did not fill the buffer has most likely drained
+				// the socket, so save the extra call that would confirm it.
+				boolean drained = buffer.hasRemaining();
+				buffer.flip();
+				onData( connection, buffer );
+				if( drained || connection.isClosed() || connection.isReadSuspended() ) {
+					break;
+				}
 			}
-			buffer.flip();
-			byte [] data = new byte [buffer.limit()];
-			buffer.get( data );
-			onData( connection, data );
 		} catch( IOException exception ) {
 			onException( exception );
+		} finally {
+			pool.release( buffer );
 		}
 
 	}
@@ -68,7 +142,57 @@ public class EventHandler {
 			connection.flush();
 		} catch( IOException exception ) {
 			onException( exception );
+			connection.close();
 		}
 	}
 
+	/**
+	 * Runs the given task on the dispatcher currently servicing the given
+	 * connection, once the given delay has elapsed.
+	 *
+	 * @param connection
+	 *            the connection on whose behalf the task is scheduled.
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay, in milliseconds.
+	 * @return a handle with which the task may be cancelled.
+	 */
+	protected Timeout schedule( Connection connection, Runnable task, long delay ) {
+		return connection.getDispatcher().schedule( task, delay, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            the number of milliseconds a connection may go without
+	 *            sending any data before {@link #onIdle(Connection)} is called,
+	 *            or zero to disable idle timeouts. This applies to connections
+	 *            established after it is set.
+	 */
+	public void setIdleTimeout( long idleTimeout ) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	private void watchIdle( final Connection connection, long delay ) {
+		// Rather than rescheduling on every read, check once per timeout and
+		// wait out whatever remains of it.
+		schedule( connection, new Runnable() {
+
+			@Override
+			public void run() {
+				long timeout = idleTimeout;
+				if( connection.isClosed() || timeout <= 0 ) {
+					return;
+				}
+				long idle = System.currentTimeMillis() - connection.getLastRead();
+				if( idle >= timeout ) {
+					onIdle( connection );
+				} else {
+					watchIdle( connection, timeout - idle );
+				}
+			}
+
+		}, delay );
+	}
+
 }
@@ -0,0 +1,162 @@
+package org.twuni.nio.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.twuni.Logger;
+import org.twuni.nio.server.TimingWheel.Timeout;
+
+/**
+ * Flow control ties the connections sending packets to the targets receiving
+ * them. When a sender hands a packet to a {@link Transporter} target that has
+ * become {@link Transporter#isCongested(String) congested}, reading from the
+ * sender is suspended until that target has {@link Transporter#isDrained(String)
+ * drained}, so that a fast sender cannot grow a slow recipient's queue without
+ * bound.
+ * <p>
+ * A target that stays congested for longer than the slow consumer timeout is
+ * disconnected, which releases every sender waiting on it.
+ * </p>
+ */
+public class FlowControl {
+
+	private static class Congestion {
+
+		final Set<Connection> senders = new LinkedHashSet<Connection>();
+		Timeout timeout;
+
+	}
+
+	public static final long DEFAULT_SLOW_CONSUMER_TIMEOUT = 30 * 1000;
+
+	private static Logger defaultLogger() {
+		return new Logger( FlowControl.class.getName() );
+	}
+
+	private final Logger log;
+	private final Transporter transporter;
+	private final Map<String, Congestion> congestions = new HashMap<String, Congestion>();
+	private volatile long slowConsumerTimeout = DEFAULT_SLOW_CONSUMER_TIMEOUT;
+
+	public FlowControl( Transporter transporter ) {
+		this( transporter, defaultLogger() );
+	}
+
+	public FlowControl( Transporter transporter, Logger logger ) {
+		this.transporter = transporter;
+		log = logger;
+	}
+
+	/**
+	 * Suspends reading from the given sender if the given target is
+	 * congested. Call this after each packet the sender hands to the target.
+	 *
+	 * @param sender
+	 *            the connection from which the packet was read.
+	 * @param targetID
+	 *            the ID of the target to which the packet was sent.
+	 */
+	public void block( Connection sender, String targetID ) {
+
+		if( !transporter.isCongested( targetID ) ) {
+			return;
+		}
+
+		synchronized( this ) {
+			Congestion congestion = congestions.get( targetID );
+			if( congestion == null ) {
+				congestion = new Congestion();
+				congestions.put( targetID, congestion );
+				congestion.timeout = watch( targetID, congestion );
+			}
+			if( congestion.senders.add( sender ) ) {
+				log.info( "BLOCK C/%s %s", sender.id(), targetID );
+				sender.suspendReading();
+			}
+		}
+
+		// The target may have drained before the sender was added, in which
+		// case nobody else is going to release it.
+		release( targetID );
+
+	}
+
+	public long getSlowConsumerTimeout() {
+		return slowConsumerTimeout;
+	}
+
+	/**
+	 * Resumes reading from every sender waiting on the given target if it has
+	 * drained, or if it is no longer available. Call this whenever data has
+	 * been flushed to the target, and when it disconnects.
+	 *
+	 * @param targetID
+	 *            the ID of the target.
+	 */
+	public void release( String targetID ) {
+		release( targetID, false );
+	}
+
+	private void release( String targetID, boolean force ) {
+
+		Congestion congestion;
+
+		synchronized( this ) {
+			if( congestions.isEmpty() || !congestions.containsKey( targetID ) || !( force || transporter.isDrained( targetID ) ) ) {
+				return;
+			}
+			congestion = congestions.remove( targetID );
+		}
+
+		if( congestion.timeout != null ) {
+			congestion.timeout.cancel();
+		}
+
+		for( Connection sender : congestion.senders ) {
+			log.info( "RELEASE C/%s %s", sender.id(), targetID );
+			sender.resumeReading();
+		}
+
+	}
+
+	/**
+	 * @param slowConsumerTimeout
+	 *            the number of milliseconds a target may stay congested
+	 *            before it is disconnected, or zero to wait indefinitely.
+	 */
+	public void setSlowConsumerTimeout( long slowConsumerTimeout ) {
+		this.slowConsumerTimeout = slowConsumerTimeout;
+	}
+
+	private Timeout watch( final String targetID, final Congestion congestion ) {
+
+		Writable target = transporter.getTarget( targetID );
+
+		if( slowConsumerTimeout <= 0 || !( target instanceof Connection ) ) {
+			return null;
+		}
+
+		final Connection connection = (Connection) target;
+
+		return connection.getDispatcher().schedule( new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized( FlowControl.this ) {
+					if( congestions.get( targetID ) != congestion ) {
+						return;
+					}
+				}
+				log.info( "SLOW C/%s %s", connection.id(), targetID );
+				connection.close();
+				release( targetID, true );
+			}
+
+		}, slowConsumerTimeout, TimeUnit.MILLISECONDS );
+
+	}
+
+}
@@ -0,0 +1,588 @@
+package org.twuni.nio.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.twuni.Logger;
+
+/**
+ * A mapped offline store keeps packets in append-only log files, mapped into
+ * memory, so that they survive a restart without the need for a database.
+ * Targets are spread across a number of shards by the hash of their IDs, and
+ * each shard has its own directory of fixed-size segment files and its own
+ * lock.
+ * <p>
+ * Each shard keeps an in-memory index of where each target's packets are in
+ * its segments, but never the packets themselves, so memory use for targets
+ * that stay away stays flat. Removing a target's packets appends a tombstone
+ * to the log. Packets older than the time-to-live are skipped and, like
+ * removed ones, no longer count as live. Whenever a shard moves on to a new
+ * segment, its oldest segments are deleted once nothing in them is live, or
+ * compacted by copying what is left to the newest segment if little is.
+ * </p>
+ * <p>
+ * Appends land in the operating system's page cache as soon as they are made,
+ * so they survive the process going away; {@link #sync()} forces them to disk.
+ * </p>
+ */
+public class MappedOfflineStore implements OfflineStore {
+
+	private static class Entry {
+
+		Segment segment;
+		int offset;
+		final int length;
+		final long sequence;
+		final long timestamp;
+
+		public Entry( Segment segment, int offset, int length, long sequence, long timestamp ) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+		}
+
+	}
+
+	private static class Mailbox {
+
+		final List<Entry> entries = new ArrayList<Entry>();
+		long bytes;
+
+	}
+
+	private static class Segment {
+
+		final long number;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		int live;
+		long liveBytes;
+
+		public Segment( long number, File file, int size ) throws IOException {
+			this.number = number;
+			this.file = file;
+			raf = new RandomAccessFile( file, "rw" );
+			buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+
+		public void close() throws IOException {
+			buffer.force();
+			raf.close();
+		}
+
+		public void delete() throws IOException {
+			raf.close();
+			if( !file.delete() ) {
+				throw new IOException( String.format( "Could not delete %s", file ) );
+			}
+		}
+
+	}
+
+	private class Shard {
+
+		private final File directory;
+		private final List<Segment> segments = new ArrayList<Segment>();
+		private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+		private Segment active;
+		private long nextSequence;
+		private boolean compacting;
+
+		public Shard( File directory ) throws IOException {
+			this.directory = directory;
+			if( !directory.isDirectory() && !directory.mkdirs() ) {
+				throw new IOException( String.format( "Could not create %s", directory ) );
+			}
+			recover();
+		}
+
+		private int append( byte type, String targetID, long sequence, long timestamp, byte [] payload ) throws IOException {
+			byte [] id = targetID.getBytes( UTF_8 );
+			int length = RECORD_HEADER + id.length + payload.length;
+			if( length + 4 > segmentSize ) {
+				throw new IOException( "Record too large." );
+			}
+			while( active == null || active.buffer.remaining() < length + 4 ) {
+				roll();
+			}
+			ByteBuffer body = ByteBuffer.allocate( length - 8 );
+			body.put( type );
+			body.putLong( sequence );
+			body.putLong( timestamp );
+			body.putShort( (short) id.length );
+			body.put( id );
+			body.put( payload );
+			CRC32 crc = new CRC32();
+			crc.update( body.array() );
+			int offset = active.buffer.position();
+			active.buffer.putInt( length - 4 );
+			active.buffer.putInt( (int) crc.getValue() );
+			active.buffer.put( body.array() );
+			if( active.buffer.remaining() >= 4 ) {
+				active.buffer.putInt( active.buffer.position(), 0 );
+			}
+			return offset + RECORD_HEADER + id.length;
+		}
+
+		public synchronized void close() throws IOException {
+			for( Segment segment : segments ) {
+				segment.close();
+			}
+			segments.clear();
+			mailboxes.clear();
+			active = null;
+		}
+
+		/**
+		 * Deletes the oldest segments for as long as nothing in them is live,
+		 * and copies the live packets out of the oldest segment first if they
+		 * take up less than half of it.
+		 */
+		private void compact() throws IOException {
+			if( compacting ) {
+				return;
+			}
+			compacting = true;
+			try {
+				expire( System.currentTimeMillis() );
+				while( segments.size() > 1 && segments.get( 0 ) != active ) {
+					Segment oldest = segments.get( 0 );
+					if( oldest.live > 0 ) {
+						if( oldest.liveBytes * 2 > segmentSize ) {
+							break;
+						}
+						relocate( oldest );
+					}
+					segments.remove( 0 );
+					oldest.delete();
+					log.info( "COMPACT %s", oldest.file.getName() );
+				}
+			} finally {
+				compacting = false;
+			}
+		}
+
+		public synchronized int count( String targetID ) {
+			Mailbox mailbox = mailboxes.get( targetID );
+			return mailbox != null ? mailbox.entries.size() : 0;
+		}
+
+		private void expire( long now ) {
+			if( timeToLive <= 0 ) {
+				return;
+			}
+			Iterator<Mailbox> it = mailboxes.values().iterator();
+			while( it.hasNext() ) {
+				Mailbox mailbox = it.next();
+				Iterator<Entry> entries = mailbox.entries.iterator();
+				while( entries.hasNext() ) {
+					Entry entry = entries.next();
+					if( now - entry.timestamp < timeToLive ) {
+						break;
+					}
+					release( mailbox, entry );
+					entries.remove();
+				}
+				if( mailbox.entries.isEmpty() ) {
+					it.remove();
+				}
+			}
+		}
+
+		public synchronized List<EncodedPacket> load( String targetID ) {
+			Mailbox mailbox = mailboxes.get( targetID );
+			if( mailbox == null ) {
+				return Collections.emptyList();
+			}
+			long now = System.currentTimeMillis();
+			List<EncodedPacket> packets = new ArrayList<EncodedPacket>( mailbox.entries.size() );
+			for( Entry entry : mailbox.entries ) {
+				if( timeToLive > 0 && now - entry.timestamp >= timeToLive ) {
+					continue;
+				}
+				ByteBuffer in = entry.segment.buffer.duplicate();
+				in.position( entry.offset );
+				byte [] payload = new byte [entry.length];
+				in.get( payload );
+				packets.add( new EncodedPacket( payload ) );
+			}
+			return packets;
+		}
+
+		private Segment open( long number ) throws IOException {
+			Segment segment = new Segment( number, new File( directory, String.format( SEGMENT_FORMAT, Long.valueOf( number ) ) ), segmentSize );
+			segments.add( segment );
+			return segment;
+		}
+
+		private void recover() throws IOException {
+
+			File [] files = directory.listFiles( new FileFilter() {
+
+				@Override
+				public boolean accept( File file ) {
+					return file.isFile() && file.getName().endsWith( SEGMENT_SUFFIX );
+				}
+
+			} );
+
+			Arrays.sort( files );
+
+			Map<String, Long> tombstones = new HashMap<String, Long>();
+
+			for( File file : files ) {
+				long number = Long.parseLong( file.getName().substring( 0, file.getName().length() - SEGMENT_SUFFIX.length() ) );
+				Segment segment = open( number );
+				scan( segment, tombstones );
+				active = segment;
+			}
+
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Mailbox>> it = mailboxes.entrySet().iterator();
+
+			while( it.hasNext() ) {
+
+				Map.Entry<String, Mailbox> e = it.next();
+				Mailbox mailbox = e.getValue();
+				Long tombstone = tombstones.get( e.getKey() );
+
+				// Packets copied during compaction may have been seen twice,
+				// and out of order.
+				Collections.sort( mailbox.entries, BY_SEQUENCE );
+
+				Entry previous = null;
+				Iterator<Entry> entries = mailbox.entries.iterator();
+				while( entries.hasNext() ) {
+					Entry entry = entries.next();
+					boolean duplicate = previous != null && previous.sequence == entry.sequence;
+					boolean dead = tombstone != null && entry.sequence <= tombstone.longValue();
+					boolean expired = timeToLive > 0 && now - entry.timestamp >= timeToLive;
+					if( duplicate || dead || expired ) {
+						release( mailbox, entry );
+						entries.remove();
+					} else {
+						previous = entry;
+					}
+				}
+
+				if( mailbox.entries.isEmpty() ) {
+					it.remove();
+				}
+
+			}
+
+			if( active == null ) {
+				roll();
+			}
+
+			log.info( "RECOVER %s [%d segments, %d targets]", directory, Integer.valueOf( segments.size() ), Integer.valueOf( mailboxes.size() ) );
+
+		}
+
+		/**
+		 * Copies every live packet in the given segment to the end of the log,
+		 * keeping its original sequence number and timestamp.
+		 */
+		private void relocate( Segment segment ) throws IOException {
+			for( Map.Entry<String, Mailbox> e : mailboxes.entrySet() ) {
+				for( Entry entry : e.getValue().entries ) {
+					if( entry.segment != segment ) {
+						continue;
+					}
+					ByteBuffer in = segment.buffer.duplicate();
+					in.position( entry.offset );
+					byte [] payload = new byte [entry.length];
+					in.get( payload );
+					int offset = append( TYPE_PACKET, e.getKey(), entry.sequence, entry.timestamp, payload );
+					segment.live--;
+					segment.liveBytes -= entry.length;
+					entry.segment = active;
+					entry.offset = offset;
+					active.live++;
+					active.liveBytes += entry.length;
+				}
+			}
+		}
+
+		private void release( Mailbox mailbox, Entry entry ) {
+			mailbox.bytes -= entry.length;
+			entry.segment.live--;
+			entry.segment.liveBytes -= entry.length;
+		}
+
+		public synchronized void remove( String targetID ) throws IOException {
+			Mailbox mailbox = mailboxes.remove( targetID );
+			if( mailbox == null || mailbox.entries.isEmpty() ) {
+				return;
+			}
+			Entry last = mailbox.entries.get( mailbox.entries.size() - 1 );
+			append( TYPE_TOMBSTONE, targetID, last.sequence, System.currentTimeMillis(), new byte [0] );
+			for( Entry entry : mailbox.entries ) {
+				release( mailbox, entry );
+			}
+		}
+
+		private void roll() throws IOException {
+			long number = active != null ? active.number + 1 : 0;
+			active = open( number );
+			compact();
+		}
+
+		private void scan( Segment segment, Map<String, Long> tombstones ) {
+
+			ByteBuffer in = segment.buffer;
+			in.position( 0 );
+
+			while( in.remaining() >= 8 ) {
+
+				int start = in.position();
+				int length = in.getInt();
+
+				if( length <= 4 || length > in.remaining() ) {
+					in.position( start );
+					break;
+				}
+
+				int checksum = in.getInt();
+				byte [] body = new byte [length - 4];
+				in.get( body );
+
+				CRC32 crc = new CRC32();
+				crc.update( body );
+
+				if( (int) crc.getValue() != checksum ) {
+					log.info( "CORRUPT %s@%d", segment.file.getName(), Integer.valueOf( start ) );
+					in.position( start );
+					break;
+				}
+
+				ByteBuffer record = ByteBuffer.wrap( body );
+				byte type = record.get();
+				long sequence = record.getLong();
+				long timestamp = record.getLong();
+				byte [] id = new byte [record.getShort()];
+				record.get( id );
+				String targetID = new String( id, UTF_8 );
+
+				nextSequence = Math.max( nextSequence, sequence + 1 );
+
+				if( type == TYPE_TOMBSTONE ) {
+					Long previous = tombstones.get( targetID );
+					if( previous == null || previous.longValue() < sequence ) {
+						tombstones.put( targetID, Long.valueOf( sequence ) );
+					}
+				} else if( type == TYPE_PACKET ) {
+					int payloadLength = record.remaining();
+					Entry entry = new Entry( segment, start + RECORD_HEADER + id.length, payloadLength, sequence, timestamp );
+					mailbox( targetID ).entries.add( entry );
+					mailbox( targetID ).bytes += payloadLength;
+					segment.live++;
+					segment.liveBytes += payloadLength;
+				}
+
+			}
+
+		}
+
+		private Mailbox mailbox( String targetID ) {
+			Mailbox mailbox = mailboxes.get( targetID );
+			if( mailbox == null ) {
+				mailbox = new Mailbox();
+				mailboxes.put( targetID, mailbox );
+			}
+			return mailbox;
+		}
+
+		public synchronized boolean store( String targetID, EncodedPacket packet ) throws IOException {
+			Mailbox mailbox = mailboxes.get( targetID );
+			if( mailbox != null && ( mailbox.entries.size() >= maximumPackets || mailbox.bytes + packet.length() > maximumBytes ) ) {
+				return false;
+			}
+			long sequence = nextSequence++;
+			long timestamp = System.currentTimeMillis();
+			int offset = append( TYPE_PACKET, targetID, sequence, timestamp, packet.getBytes() );
+			mailbox = mailbox( targetID );
+			mailbox.entries.add( new Entry( active, offset, packet.length(), sequence, timestamp ) );
+			mailbox.bytes += packet.length();
+			active.live++;
+			active.liveBytes += packet.length();
+			return true;
+		}
+
+		public synchronized void sync() {
+			for( Segment segment : segments ) {
+				segment.buffer.force();
+			}
+		}
+
+	}
+
+	public static final int DEFAULT_SHARD_COUNT = 4;
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_MAXIMUM_PACKETS = 1000;
+	public static final long DEFAULT_MAXIMUM_BYTES = 1024 * 1024;
+	public static final long DEFAULT_TIME_TO_LIVE = 7L * 24 * 60 * 60 * 1000;
+
+	private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SEGMENT_FORMAT = "%020d" + SEGMENT_SUFFIX;
+	private static final byte TYPE_PACKET = 1;
+	private static final byte TYPE_TOMBSTONE = 2;
+
+	/**
+	 * Length, checksum, type, sequence number, timestamp and ID length.
+	 */
+	private static final int RECORD_HEADER = 4 + 4 + 1 + 8 + 8 + 2;
+
+	private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+
+		@Override
+		public int compare( Entry a, Entry b ) {
+			return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+		}
+
+	};
+
+	private static Logger defaultLogger() {
+		return new Logger( MappedOfflineStore.class.getName() );
+	}
+
+	private final Logger log;
+	private final Shard [] shards;
+	private final int segmentSize;
+	private volatile int maximumPackets = DEFAULT_MAXIMUM_PACKETS;
+	private volatile long maximumBytes = DEFAULT_MAXIMUM_BYTES;
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	public MappedOfflineStore( File directory ) throws IOException {
+		this( directory, DEFAULT_SHARD_COUNT, DEFAULT_SEGMENT_SIZE );
+	}
+
+	public MappedOfflineStore( File directory, int shardCount, int segmentSize ) throws IOException {
+		this( directory, shardCount, segmentSize, defaultLogger() );
+	}
+
+	/**
+	 * Opens the store in the given directory, recovering every packet that
+	 * was stored and not removed before it was last closed.
+	 *
+	 * @param directory
+	 *            the directory in which to keep the store's files.
+	 * @param shardCount
+	 *            the number of shards. This must not change between runs.
+	 * @param segmentSize
+	 *            the size, in bytes, of each segment file.
+	 * @param logger
+	 *            the logger.
+	 * @throws IOException
+	 *             if the store could not be opened.
+	 */
+	public MappedOfflineStore( File directory, int shardCount, int segmentSize, Logger logger ) throws IOException {
+		if( shardCount <= 0 || segmentSize <= RECORD_HEADER ) {
+			throw new IllegalArgumentException();
+		}
+		log = logger;
+		this.segmentSize = segmentSize;
+		shards = new Shard [shardCount];
+		for( int i = 0; i < shardCount; i++ ) {
+			shards[i] = new Shard( new File( directory, String.format( "shard-%d", Integer.valueOf( i ) ) ) );
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for( Shard shard : shards ) {
+			shard.close();
+		}
+	}
+
+	@Override
+	public int count( String targetID ) {
+		return shard( targetID ).count( targetID );
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	public int getMaximumPackets() {
+		return maximumPackets;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	@Override
+	public List<EncodedPacket> load( String targetID ) {
+		return shard( targetID ).load( targetID );
+	}
+
+	@Override
+	public void remove( String targetID ) throws IOException {
+		shard( targetID ).remove( targetID );
+	}
+
+	/**
+	 * @param maximumBytes
+	 *            the total size, in bytes, of the packets that may be stored
+	 *            for a single target.
+	 */
+	public void setMaximumBytes( long maximumBytes ) {
+		this.maximumBytes = maximumBytes;
+	}
+
+	/**
+	 * @param maximumPackets
+	 *            the number of packets that may be stored for a single target.
+	 */
+	public void setMaximumPackets( int maximumPackets ) {
+		this.maximumPackets = maximumPackets;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            the time, in milliseconds, after which a stored packet
+	 *            expires, or zero if packets never expire.
+	 */
+	public void setTimeToLive( long timeToLive ) {
+		this.timeToLive = timeToLive;
+	}
+
+	private Shard shard( String targetID ) {
+		return shards[( targetID.hashCode() & Integer.MAX_VALUE ) % shards.length];
+	}
+
+	@Override
+	public boolean store( String targetID, EncodedPacket packet ) throws IOException {
+		return shard( targetID ).store( targetID, packet );
+	}
+
+	/**
+	 * Forces every change made so far out to disk.
+	 */
+	public void sync() {
+		for( Shard shard : shards ) {
+			shard.sync();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.twuni.nio.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An offline store holds on to packets for targets that are not currently
+ * available, until they become available again. A {@link Transporter} with an
+ * offline store hands it every packet for an unavailable target, and replays
+ * the stored packets in order when that target becomes available.
+ */
+public interface OfflineStore extends Closeable {
+
+	/**
+	 * @param targetID
+	 *            the ID of a target.
+	 * @return the number of packets currently stored for the given target.
+	 */
+	public int count( String targetID );
+
+	/**
+	 * @param targetID
+	 *            the ID of a target.
+	 * @return every unexpired packet stored for the given target, oldest
+	 *         first. The packets remain stored until they are
+	 *         {@link #remove(String) removed}.
+	 * @throws IOException
+	 *             if the packets could not be read.
+	 */
+	public List<EncodedPacket> load( String targetID ) throws IOException;
+
+	/**
+	 * Discards every packet stored for the given target.
+	 *
+	 * @param targetID
+	 *            the ID of a target.
+	 * @throws IOException
+	 *             if the removal could not be recorded.
+	 */
+	public void remove( String targetID ) throws IOException;
+
+	/**
+	 * Stores a packet for the given target.
+	 *
+	 * @param targetID
+	 *            the ID of the target.
+	 * @param packet
+	 *            the packet to store.
+	 * @return {@code false} if the packet was rejected, for instance because
+	 *         the target has reached its quota.
+	 * @throws IOException
+	 *             if the packet could not be written.
+	 */
+	public boolean store( String targetID, EncodedPacket packet ) throws IOException;
+
+}
@@ -1,15 +1,82 @@
 package org.twuni.nio.server;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/**
+ * A queue of packets, each numbered in the order it was added. The number of
+ * the most recently added packet is the queue's {@link #getOffset() offset},
+ * so with stream management the offset of a queue of sent stanzas is the
+ * {@code h} value the peer is expected to acknowledge.
+ * <p>
+ * Packets are kept in a ring buffer which grows as needed, so adding a packet
+ * and {@link #acknowledge(int) trimming} acknowledged packets off the front
+ * of the queue both take constant time. The queue also keeps track of how
+ * many bytes its packets take up once encoded.
+ * </p>
+ * <p>
+ * A packet may also be removed through an iterator. As when acknowledging,
+ * this leaves the offset as it is, so the packets behind the one removed keep
+ * their numbers, and those ahead of it move up by one.
+ * </p>
+ * <p>
+ * A queue is not thread-safe.
+ * </p>
+ */
 public class Queue implements Iterable<Object> {
 
+	private class Cursor implements Iterator<Object> {
+
+		private int index;
+		private boolean removable;
+
+		public Cursor( int index ) {
+			this.index = index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < count;
+		}
+
+		@Override
+		public Object next() {
+			if( !hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			removable = true;
+			return items[( head + index++ ) & ( items.length - 1 )];
+		}
+
+		@Override
+		public void remove() {
+			if( !removable ) {
+				throw new IllegalStateException();
+			}
+			removeAt( --index );
+			removable = false;
+		}
+
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * @return the number of bytes the given packet takes up once encoded.
+	 *         Packets that are already encoded are not encoded again.
+	 */
+	private static int sizeOf( Object packet ) {
+		return packet != null ? EncodedPacket.encode( packet ).length() : 0;
+	}
+
 	private final String id;
-	private final Collection<Object> items = new ArrayList<Object>();
 
+	private Object [] items = new Object [INITIAL_CAPACITY];
+	private int [] sizes = new int [INITIAL_CAPACITY];
+	private int head;
+	private int count;
 	private int offset;
+	private long byteSize;
 
 	public Queue( String id ) {
 		this( id, 0 );
@@ -20,40 +87,171 @@ public class Queue implements Iterable<Object> {
 		this.offset = offset;
 	}
 
+	/**
+	 * Removes every packet numbered up to and including {@code h} from the
+	 * front of this queue.
+	 *
+	 * @param h
+	 *            the number of the last packet the peer has acknowledged.
+	 *            Numbers wrap around, as {@code h} values do.
+	 * @return the number of packets removed. Nothing is removed if {@code h}
+	 *         does not fall between the number of the last packet removed
+	 *         and this queue's offset.
+	 */
+	public int acknowledge( int h ) {
+		int acknowledged = h - ( offset - count );
+		if( acknowledged <= 0 || acknowledged > count ) {
+			return 0;
+		}
+		removeFirst( acknowledged );
+		return acknowledged;
+	}
+
 	public void add( Object object ) {
+		if( count == items.length ) {
+			grow();
+		}
+		int index = ( head + count ) & ( items.length - 1 );
+		int size = sizeOf( object );
+		items[index] = object;
+		sizes[index] = size;
+		byteSize += size;
+		count++;
 		offset++;
-		items.add( object );
 	}
 
+	/**
+	 * Removes every packet from this queue, leaving its offset as it is.
+	 */
 	public void clear() {
-		items.clear();
+		removeFirst( count );
+	}
+
+	/**
+	 * @return the packet with the given number, or {@code null} if it is not
+	 *         in this queue.
+	 */
+	public Object get( int sequence ) {
+		int index = sequence - getFirstSequence();
+		if( index < 0 || index >= count ) {
+			return null;
+		}
+		return items[( head + index ) & ( items.length - 1 )];
+	}
+
+	/**
+	 * @return the number of bytes taken up by the packets in this queue.
+	 */
+	public long getByteSize() {
+		return byteSize;
+	}
+
+	/**
+	 * @return the number of the packet at the front of this queue. If the
+	 *         queue is empty, this is the number the next packet will get.
+	 */
+	public int getFirstSequence() {
+		return offset - count + 1;
 	}
 
+	/**
+	 * @return the number of the packet most recently added to this queue.
+	 */
 	public int getOffset() {
 		return offset;
 	}
 
+	private void grow() {
+		Object [] grownItems = new Object [items.length << 1];
+		int [] grownSizes = new int [sizes.length << 1];
+		int first = items.length - head;
+		System.arraycopy( items, head, grownItems, 0, first );
+		System.arraycopy( items, 0, grownItems, first, head );
+		System.arraycopy( sizes, head, grownSizes, 0, first );
+		System.arraycopy( sizes, 0, grownSizes, first, head );
+		items = grownItems;
+		sizes = grownSizes;
+		head = 0;
+	}
+
 	public String id() {
 		return id;
 	}
 
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
 	@Override
 	public Iterator<Object> iterator() {
-		return items.iterator();
+		return new Cursor( 0 );
+	}
+
+	/**
+	 * @param sequence
+	 *            the number of the first packet to visit, such as the
+	 *            {@code h} value of the last acknowledgment plus one when
+	 *            retransmitting.
+	 * @return an iterator over the packets in this queue from the given number
+	 *         onwards, or from the front of the queue if that packet has
+	 *         already been removed.
+	 */
+	public Iterator<Object> iterator( int sequence ) {
+		int index = sequence - getFirstSequence();
+		return new Cursor( index < 0 ? 0 : Math.min( index, count ) );
+	}
+
+	/**
+	 * Removes the packet at the given index from the front of this queue,
+	 * moving every packet ahead of it back by one slot.
+	 */
+	private void removeAt( int index ) {
+		int mask = items.length - 1;
+		int slot = ( head + index ) & mask;
+		byteSize -= sizes[slot];
+		for( int i = index; i > 0; i-- ) {
+			int previous = ( slot - 1 ) & mask;
+			items[slot] = items[previous];
+			sizes[slot] = sizes[previous];
+			slot = previous;
+		}
+		items[head] = null;
+		head = ( head + 1 ) & mask;
+		count--;
+		if( count == 0 ) {
+			head = 0;
+		}
+	}
+
+	private void removeFirst( int n ) {
+		int mask = items.length - 1;
+		for( int i = 0; i < n; i++ ) {
+			items[head] = null;
+			byteSize -= sizes[head];
+			head = ( head + 1 ) & mask;
+		}
+		count -= n;
+		if( count == 0 ) {
+			head = 0;
+		}
 	}
 
 	public int size() {
-		return items.size();
+		return count;
 	}
 
+	/**
+	 * Moves every packet in this queue to the end of the given queue, which
+	 * numbers them anew. This queue's offset goes back by the number of
+	 * packets moved, so they are numbered the same way if they are added here
+	 * again.
+	 */
 	public void transfer( Queue target ) {
-		Iterator<Object> it = iterator();
-		while( it.hasNext() ) {
-			Object item = it.next();
+		for( Object item : this ) {
 			target.add( item );
-			offset--;
-			it.remove();
 		}
+		offset -= count;
+		removeFirst( count );
 	}
 
 }
@@ -0,0 +1,124 @@
+package org.twuni.nio.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A serial executor runs the tasks submitted to it one at a time, in the order
+ * they were submitted, on the threads of a shared executor. Many serial
+ * executors may share the same underlying executor, so that tasks from
+ * different sources run in parallel while tasks from the same source never
+ * overlap or run out of order.
+ * <p>
+ * To keep one busy source from monopolizing a thread, at most
+ * {@link #MAXIMUM_BATCH} tasks are run per turn before yielding the thread
+ * back to the underlying executor.
+ * </p>
+ * <p>
+ * A serial executor may also be given a bound on the number of tasks waiting
+ * to run. It is told when the tasks waiting reach the bound, through
+ * {@link #onSaturated()}, and when they drop back below it, through
+ * {@link #onDrained()}, so that whoever submits them can stop and start again.
+ * Tasks submitted beyond the bound are still accepted.
+ * </p>
+ */
+public class SerialExecutor implements Executor {
+
+	public static final int MAXIMUM_BATCH = 64;
+
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final int maximumPending;
+
+	private final Runnable drain = new Runnable() {
+
+		@Override
+		public void run() {
+			try {
+				for( int i = 0; i < MAXIMUM_BATCH; i++ ) {
+					Runnable task = tasks.poll();
+					if( task == null ) {
+						break;
+					}
+					try {
+						task.run();
+					} finally {
+						if( pending.decrementAndGet() == maximumPending - 1 ) {
+							onDrained();
+						}
+					}
+				}
+			} finally {
+				scheduled.set( false );
+				schedule();
+			}
+		}
+
+	};
+
+	public SerialExecutor( Executor executor ) {
+		this( executor, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * @param maximumPending
+	 *            the number of tasks waiting to run at which this executor
+	 *            is {@link #onSaturated() saturated}.
+	 */
+	public SerialExecutor( Executor executor, int maximumPending ) {
+		this.executor = executor;
+		this.maximumPending = maximumPending;
+	}
+
+	@Override
+	public void execute( Runnable task ) {
+		tasks.offer( task );
+		if( pending.incrementAndGet() == maximumPending ) {
+			onSaturated();
+		}
+		schedule();
+	}
+
+	/**
+	 * @return the number of tasks submitted to this executor that have not
+	 *         finished running.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * @return {@code true} if no tasks are waiting to run.
+	 */
+	public boolean isIdle() {
+		return tasks.isEmpty() && !scheduled.get();
+	}
+
+	/**
+	 * Called once the tasks waiting to run drop back below this executor's
+	 * bound, after it has been {@link #onSaturated() saturated}. By default,
+	 * this does nothing.
+	 */
+	protected void onDrained() {
+		// Do nothing by default.
+	}
+
+	/**
+	 * Called once the tasks waiting to run reach this executor's bound. By
+	 * default, this does nothing.
+	 */
+	protected void onSaturated() {
+		// Do nothing by default.
+	}
+
+	private void schedule() {
+		if( !tasks.isEmpty() && scheduled.compareAndSet( false, true ) ) {
+			executor.execute( drain );
+		}
+	}
+
+}
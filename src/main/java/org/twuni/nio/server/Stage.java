@@ -0,0 +1,242 @@
+package org.twuni.nio.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.twuni.Logger;
+
+/**
+ * A stage runs work on behalf of connections on a pool of worker threads, so
+ * that slow work does not hold up the {@link Dispatcher} that read it. Each
+ * connection gets a {@link SerialExecutor} of its own, so the work of a single
+ * connection still runs one task at a time and in order, while the work of
+ * different connections runs in parallel.
+ * <p>
+ * Once the tasks waiting to run for a connection reach the stage's
+ * {@link #setMaximumPending(int) bound}, reading from that connection is
+ * suspended until its workers have caught up, so a peer cannot queue up work
+ * faster than it is done. The workers' own queue only ever holds one turn per
+ * connection, so it needs no bound of its own.
+ * </p>
+ * <p>
+ * A stage keeps track of how many of its tasks are waiting to run, how long
+ * they wait, and how long they take to run.
+ * </p>
+ */
+public class Stage {
+
+	public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_MAXIMUM_PENDING = 256;
+
+	private static Logger defaultLogger() {
+		return new Logger( Stage.class.getName() );
+	}
+
+	private static ExecutorService createExecutor( final String name, int threadCount ) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread( Runnable task ) {
+				Thread thread = new Thread( task, String.format( "%s %d", name, Integer.valueOf( count.incrementAndGet() ) ) );
+				thread.setDaemon( true );
+				return thread;
+			}
+
+		} );
+		executor.allowCoreThreadTimeOut( true );
+		return executor;
+	}
+
+	private final Logger log;
+	private final String name;
+	private final Executor executor;
+	private final ConcurrentHashMap<Connection, SerialExecutor> executors = new ConcurrentHashMap<Connection, SerialExecutor>();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maximumLatency = new AtomicLong();
+	private volatile int maximumPending = DEFAULT_MAXIMUM_PENDING;
+
+	public Stage( String name ) {
+		this( name, DEFAULT_THREAD_COUNT );
+	}
+
+	public Stage( String name, Executor executor ) {
+		this( name, executor, defaultLogger() );
+	}
+
+	public Stage( String name, Executor executor, Logger logger ) {
+		this.name = name;
+		this.executor = executor;
+		log = logger;
+	}
+
+	public Stage( String name, int threadCount ) {
+		this( name, createExecutor( name, threadCount ) );
+	}
+
+	/**
+	 * Runs the given task on this stage's workers, after every task previously
+	 * submitted on behalf of the same connection.
+	 *
+	 * @param connection
+	 *            the connection on whose behalf the task runs.
+	 * @param task
+	 *            the task to run.
+	 */
+	public void execute( final Connection connection, final Runnable task ) {
+
+		SerialExecutor serial = executors.get( connection );
+
+		if( serial == null ) {
+			SerialExecutor created = new SerialExecutor( executor, maximumPending ) {
+
+				@Override
+				protected void onDrained() {
+					connection.resumeReading();
+				}
+
+				@Override
+				protected void onSaturated() {
+					log.info( "SATURATED [%s] C/%s", name, connection.id() );
+					connection.suspendReading();
+				}
+
+			};
+			serial = executors.putIfAbsent( connection, created );
+			if( serial == null ) {
+				serial = created;
+			}
+		}
+
+		final long submittedAt = System.nanoTime();
+		queueDepth.incrementAndGet();
+
+		serial.execute( new Runnable() {
+
+			@Override
+			public void run() {
+				long startedAt = System.nanoTime();
+				queueDepth.decrementAndGet();
+				try {
+					task.run();
+				} catch( RuntimeException exception ) {
+					log.info( "ERROR [%s] T/%s %s", name, exception.getClass().getName(), exception.getLocalizedMessage() );
+				} finally {
+					record( startedAt - submittedAt, System.nanoTime() - startedAt );
+				}
+			}
+
+		} );
+
+	}
+
+	/**
+	 * @return the average time, in milliseconds, a task has taken to run.
+	 */
+	public double getAverageLatency() {
+		long count = completedCount.get();
+		return count > 0 ? totalLatency.get() / 1e6 / count : 0;
+	}
+
+	/**
+	 * @return the average time, in milliseconds, a task has waited before it
+	 *         started to run.
+	 */
+	public double getAverageWaitTime() {
+		long count = completedCount.get();
+		return count > 0 ? totalWaitTime.get() / 1e6 / count : 0;
+	}
+
+	/**
+	 * @return the number of tasks this stage has run.
+	 */
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * @return the longest time, in milliseconds, a task has taken to run.
+	 */
+	public double getMaximumLatency() {
+		return maximumLatency.get() / 1e6;
+	}
+
+	/**
+	 * @return the number of tasks that may wait to run for a single
+	 *         connection before reading from it is suspended.
+	 */
+	public int getMaximumPending() {
+		return maximumPending;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of tasks waiting to run.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	private void record( long waitTime, long latency ) {
+		completedCount.incrementAndGet();
+		totalWaitTime.addAndGet( waitTime );
+		totalLatency.addAndGet( latency );
+		long maximum = maximumLatency.get();
+		while( latency > maximum && !maximumLatency.compareAndSet( maximum, latency ) ) {
+			maximum = maximumLatency.get();
+		}
+	}
+
+	/**
+	 * Forgets the given connection once it is gone. Tasks already submitted on
+	 * its behalf still run.
+	 *
+	 * @param connection
+	 *            the connection to forget.
+	 */
+	public void release( Connection connection ) {
+		executors.remove( connection );
+	}
+
+	/**
+	 * @param maximumPending
+	 *            the number of tasks that may wait to run for a single
+	 *            connection before reading from it is suspended. This applies
+	 *            to connections first seen after it is set.
+	 */
+	public void setMaximumPending( int maximumPending ) {
+		if( maximumPending <= 0 ) {
+			throw new IllegalArgumentException();
+		}
+		this.maximumPending = maximumPending;
+	}
+
+	/**
+	 * Shuts down the underlying executor, if it is an {@link ExecutorService}.
+	 */
+	public void shutdown() {
+		if( executor instanceof ExecutorService ) {
+			( (ExecutorService) executor ).shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%s %s [depth=%d completed=%d wait=%.3fms latency=%.3fms max=%.3fms]", Stage.class.getSimpleName(), name, Integer.valueOf( getQueueDepth() ), Long.valueOf( getCompletedCount() ), Double.valueOf( getAverageWaitTime() ), Double.valueOf( getAverageLatency() ), Double.valueOf( getMaximumLatency() ) );
+	}
+
+}
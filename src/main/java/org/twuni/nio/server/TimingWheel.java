@@ -0,0 +1,233 @@
+package org.twuni.nio.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel schedules tasks to run after a delay, with constant
+ * time cost to schedule or cancel each one. Time is divided into ticks of a
+ * fixed duration, and each tick maps onto one of a fixed number of buckets. A
+ * task due more than one revolution of the wheel away waits in its bucket for
+ * the remaining number of rounds.
+ * <p>
+ * A timing wheel is not thread-safe. Each {@link Dispatcher} owns one, which
+ * is only ever touched by the dispatcher's own thread; other threads schedule
+ * work through {@link Dispatcher#schedule(Runnable, long, java.util.concurrent.TimeUnit)}.
+ * Tasks never run early, but may run up to one tick late.
+ * </p>
+ */
+public class TimingWheel {
+
+	/**
+	 * A handle to a scheduled task, which may be used to cancel it. Cancelling
+	 * is safe from any thread: the task is flagged and then discarded when its
+	 * bucket next comes around. A timeout moves from pending to either
+	 * cancelled or expired exactly once, so whichever of {@link #cancel()} and
+	 * the wheel gets there first decides whether the task runs.
+	 */
+	public static class Timeout {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		final Runnable task;
+		final long deadline;
+		long rounds;
+		Timeout next;
+		private final AtomicInteger state = new AtomicInteger( PENDING );
+
+		Timeout( Runnable task, long deadline ) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevents this task from running, if it has not already run.
+		 *
+		 * @return {@code true} if the task was cancelled by this call.
+		 */
+		public boolean cancel() {
+			return state.compareAndSet( PENDING, CANCELLED );
+		}
+
+		/**
+		 * Marks this task as due to run.
+		 *
+		 * @return {@code true} if the task is to run, or {@code false} if it
+		 *         was cancelled first.
+		 */
+		boolean expire() {
+			return state.compareAndSet( PENDING, EXPIRED );
+		}
+
+		/**
+		 * @return the time, in milliseconds since the epoch, at or after which
+		 *         the task is due to run.
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+	}
+
+	public static final long DEFAULT_TICK_DURATION = 100;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static int normalize( int wheelSize ) {
+		int size = 1;
+		while( size < wheelSize ) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private final long tickDuration;
+	private final Timeout [] buckets;
+	private final int mask;
+	private final long startTime;
+	private long tick;
+	private int size;
+
+	public TimingWheel() {
+		this( DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE );
+	}
+
+	/**
+	 * @param tickDuration
+	 *            the resolution of this wheel, in milliseconds.
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two.
+	 */
+	public TimingWheel( long tickDuration, int wheelSize ) {
+		if( tickDuration <= 0 ) {
+			throw new IllegalArgumentException( "Tick duration must be positive." );
+		}
+		if( wheelSize <= 0 ) {
+			throw new IllegalArgumentException( "Wheel size must be positive." );
+		}
+		this.tickDuration = tickDuration;
+		buckets = new Timeout [normalize( wheelSize )];
+		mask = buckets.length - 1;
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Places an existing timeout on this wheel.
+	 */
+	void add( Timeout timeout ) {
+		long due = ( timeout.deadline - startTime + tickDuration - 1 ) / tickDuration;
+		if( due < tick ) {
+			due = tick;
+		}
+		int index = (int) ( due & mask );
+		timeout.rounds = ( due - tick ) / buckets.length;
+		timeout.next = buckets[index];
+		buckets[index] = timeout;
+		size++;
+	}
+
+	/**
+	 * Runs every task that has come due as of the given time.
+	 *
+	 * @param now
+	 *            the current time, in milliseconds since the epoch.
+	 * @return the number of tasks that ran.
+	 */
+	public int advance( long now ) {
+		int count = 0;
+		while( size > 0 && startTime + tick * tickDuration <= now ) {
+			int index = (int) ( tick & mask );
+			// Advance before running anything, so that a task scheduling a
+			// follow-up lands in a later tick rather than the one in progress.
+			tick++;
+			Timeout previous = null;
+			Timeout timeout = buckets[index];
+			while( timeout != null ) {
+				Timeout next = timeout.next;
+				boolean remove = timeout.isCancelled() || timeout.rounds == 0;
+				if( remove ) {
+					if( previous == null ) {
+						buckets[index] = next;
+					} else {
+						previous.next = next;
+					}
+					timeout.next = null;
+					size--;
+					if( timeout.expire() ) {
+						timeout.task.run();
+						count++;
+					}
+				} else {
+					timeout.rounds--;
+					previous = timeout;
+				}
+				timeout = next;
+			}
+		}
+		if( size == 0 ) {
+			// Nothing is waiting, so skip straight to the present.
+			long current = ( now - startTime ) / tickDuration + 1;
+			if( current > tick ) {
+				tick = current;
+			}
+		}
+		return count;
+	}
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * @param now
+	 *            the current time, in milliseconds since the epoch.
+	 * @return the number of milliseconds until this wheel next needs to
+	 *         {@link #advance(long)}, suitable for {@link java.nio.channels.Selector#select(long)}.
+	 *         This is zero if nothing is scheduled, meaning there is no need
+	 *         to wake up at all.
+	 */
+	public long getTimeUntilNextTick( long now ) {
+		if( size == 0 ) {
+			return 0;
+		}
+		long delay = startTime + tick * tickDuration - now;
+		return delay > 0 ? delay : 1;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Schedules the given task to run on this wheel's thread once the given
+	 * delay has elapsed.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay, in milliseconds.
+	 * @return a handle with which the task may be cancelled.
+	 */
+	public Timeout schedule( Runnable task, long delay ) {
+		Timeout timeout = new Timeout( task, System.currentTimeMillis() + Math.max( 0, delay ) );
+		add( timeout );
+		return timeout;
+	}
+
+	/**
+	 * @return the number of scheduled tasks, including cancelled ones that
+	 *         have not yet been discarded.
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -1,36 +1,265 @@
 package org.twuni.nio.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.BufferOverflowException;
-import java.util.Collection;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.twuni.Logger;
 
+/**
+ * A transporter routes packets to targets by ID, holding on to them until the
+ * target is available and able to accept them.
+ * <p>
+ * Routing is safe to call from any number of threads at once without a global
+ * lock. Each target has a route of its own in a concurrent table, with a
+ * lock-free queue of pending packets. Any thread may add to that queue, but
+ * only one thread at a time drains it, so packets are delivered to each target
+ * in the order they were queued. A packet is only removed from the queue once
+ * it has been written, so a target going away mid-delivery never loses one.
+ * </p>
+ * <p>
+ * A route is forgotten as soon as it has no target and nothing pending, so
+ * the table only grows with the targets that are online or have packets
+ * waiting in memory, not with every ID ever addressed. A forgotten route is
+ * retired for good, and anything routed to its ID afterwards starts a new
+ * one.
+ * </p>
+ * <p>
+ * Packets are encoded as UTF-8 when they are queued, and are held as
+ * {@link EncodedPacket}s from then on. Retrying, saving or restoring a packet
+ * reuses the same bytes, and packets that are already encoded are never
+ * encoded again.
+ * </p>
+ * <p>
+ * Given an {@link OfflineStore}, a transporter stores packets for targets that
+ * are not available there instead of in memory, along with anything still
+ * waiting when a target becomes unavailable, and replays them when the target
+ * becomes available again.
+ * </p>
+ * <p>
+ * Pending packets can be {@link #save(OutputStream) saved} to a compact binary
+ * snapshot and {@link #restore(InputStream) restored} from one, so that they
+ * survive a restart. A snapshot is written and read one packet at a time, so
+ * neither takes more memory than the largest packet in it.
+ * </p>
+ */
 public class Transporter {
 
+	private static class Route {
+
+		final String id;
+		final ConcurrentLinkedQueue<EncodedPacket> pending = new ConcurrentLinkedQueue<EncodedPacket>();
+		final AtomicInteger size = new AtomicInteger();
+		final AtomicBoolean draining = new AtomicBoolean();
+
+		/**
+		 * The number of packets that have left the pending queue, delivered
+		 * or stored offline, so the packet at its head is number
+		 * {@code base + 1}.
+		 */
+		final AtomicInteger base = new AtomicInteger();
+
+		volatile Writable target;
+
+		public Route( String id ) {
+			this.id = id;
+		}
+
+	}
+
 	public static class State {
 
+		/**
+		 * Reads a state from a snapshot written by {@link #save(OutputStream)}
+		 * or by {@link Transporter#save(OutputStream)}.
+		 */
+		public static State load( InputStream in ) throws IOException {
+			State state = new State();
+			DataInputStream d = new DataInputStream( in );
+			readHeader( d );
+			while( d.readBoolean() ) {
+				String id = d.readUTF();
+				Queue queue = new Queue( id, d.readInt() );
+				for( EncodedPacket packet = readPacket( d ); packet != null; packet = readPacket( d ) ) {
+					queue.add( packet );
+				}
+				state.pendingSend.put( id, queue );
+			}
+			return state;
+		}
+
 		public final Map<String, Queue> pendingSend = new HashMap<String, Queue>();
 
+		/**
+		 * Writes this state as a snapshot. Each queue is written along with
+		 * its offset, so it is numbered the same way when it is loaded.
+		 */
+		public void save( OutputStream out ) throws IOException {
+			DataOutputStream d = new DataOutputStream( out );
+			writeHeader( d );
+			for( Queue queue : pendingSend.values() ) {
+				d.writeBoolean( true );
+				d.writeUTF( queue.id() );
+				d.writeInt( queue.getFirstSequence() - 1 );
+				for( Object packet : queue ) {
+					writePacket( d, EncodedPacket.encode( packet ) );
+				}
+				d.writeInt( -1 );
+			}
+			d.writeBoolean( false );
+			d.flush();
+		}
+
 	}
 
+	public static final int DEFAULT_MAXIMUM_PENDING = 1024;
+	public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+	/**
+	 * Marks the start of a snapshot. A snapshot consists of this, the
+	 * {@link #SNAPSHOT_VERSION version} of its format, and then each queue in
+	 * turn: a {@code true} flag, the queue's ID, the number of the packet that
+	 * preceded its first one, and then each packet's length and bytes, ended
+	 * by a length of {@code -1}. A {@code false} flag ends the snapshot.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x584D5054;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The size of a route that has been retired. Nothing may be added to such
+	 * a route.
+	 */
+	private static final int RETIRED = Integer.MIN_VALUE;
+
 	private static Logger defaultLogger() {
 		return new Logger( Transporter.class.getName() );
 	}
 
-	private static void send( Writable target, Object object ) throws IOException {
-		if( target.write( object.toString().getBytes() ) < 0 ) {
+	/**
+	 * @return {@code false} if the target is a {@link Connection} whose
+	 *         outbound queue is above its high watermark, in which case further
+	 *         packets are kept in the pending queue until it drains.
+	 */
+	private static boolean isWritable( Writable target ) {
+		return !( target instanceof Connection ) || ( (Connection) target ).isWritable();
+	}
+
+	/**
+	 * @return as many packets from the head of the given route's queue as fit
+	 *         in the given number of bytes, but always at least one if the
+	 *         queue is not empty.
+	 */
+	private static List<EncodedPacket> batch( Route route, int limit ) {
+		List<EncodedPacket> batch = new ArrayList<EncodedPacket>();
+		int length = 0;
+		for( EncodedPacket packet : route.pending ) {
+			if( !batch.isEmpty() && length + packet.length() > limit ) {
+				break;
+			}
+			batch.add( packet );
+			length += packet.length();
+		}
+		return batch;
+	}
+
+	private static boolean isRetired( Route route ) {
+		return route.size.get() == RETIRED;
+	}
+
+	private static void readHeader( DataInputStream d ) throws IOException {
+		if( d.readInt() != SNAPSHOT_MAGIC ) {
+			throw new IOException( "Not a transporter snapshot." );
+		}
+		int version = d.readInt();
+		if( version != SNAPSHOT_VERSION ) {
+			throw new IOException( String.format( "Unsupported snapshot version: %d", Integer.valueOf( version ) ) );
+		}
+	}
+
+	/**
+	 * @return the next packet in the current queue of a snapshot, or
+	 *         {@code null} at the end of the queue.
+	 */
+	private static EncodedPacket readPacket( DataInputStream d ) throws IOException {
+		int length = d.readInt();
+		if( length < 0 ) {
+			return null;
+		}
+		byte [] bytes = new byte [length];
+		d.readFully( bytes );
+		return new EncodedPacket( bytes );
+	}
+
+	/**
+	 * Counts one more packet as pending on the given route, unless the route
+	 * has been retired.
+	 *
+	 * @return {@code false} if the route has been retired.
+	 */
+	private static boolean reserve( Route route ) {
+		while( true ) {
+			int size = route.size.get();
+			if( size == RETIRED ) {
+				return false;
+			}
+			if( route.size.compareAndSet( size, size + 1 ) ) {
+				return true;
+			}
+		}
+	}
+
+	private static void send( Writable target, List<EncodedPacket> batch ) throws IOException {
+		byte [] bytes;
+		if( batch.size() == 1 ) {
+			bytes = batch.get( 0 ).getBytes();
+		} else {
+			int length = 0;
+			for( EncodedPacket packet : batch ) {
+				length += packet.length();
+			}
+			bytes = new byte [length];
+			int offset = 0;
+			for( EncodedPacket packet : batch ) {
+				System.arraycopy( packet.getBytes(), 0, bytes, offset, packet.length() );
+				offset += packet.length();
+			}
+		}
+		if( target.write( bytes ) < 0 ) {
 			throw new IOException( "Packet not sent." );
 		}
 	}
 
-	private final Logger log;
-	private final Map<String, Writable> targets = new HashMap<String, Writable>();
+	private static void writeHeader( DataOutputStream d ) throws IOException {
+		d.writeInt( SNAPSHOT_MAGIC );
+		d.writeInt( SNAPSHOT_VERSION );
+	}
+
+	private static void writePacket( DataOutputStream d, EncodedPacket packet ) throws IOException {
+		d.writeInt( packet.length() );
+		d.write( packet.getBytes(), 0, packet.length() );
+	}
 
-	private final State state = new State();
+	private final Logger log;
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private volatile int maximumPending = DEFAULT_MAXIMUM_PENDING;
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile OfflineStore offlineStore;
 
 	public Transporter() {
 		this( defaultLogger() );
@@ -45,21 +274,116 @@ public class Transporter {
 	}
 
 	public void available( Writable target, String targetID, Queue sent ) {
-		targets.put( targetID, target );
+		if( targetID == null ) {
+			return;
+		}
+		while( !attach( route( targetID ), target ) ) {
+			// The route was retired in the meantime. Start a new one.
+		}
 		flush( targetID, sent );
 	}
 
-	private void enqueue( Object packet, String targetID ) {
-
-		Queue queue = state.pendingSend.get( targetID );
+	/**
+	 * Makes the given target the target of the given route, and replays
+	 * anything kept for it in the offline store.
+	 *
+	 * @return {@code false} if the route has been retired.
+	 */
+	private boolean attach( Route route, Writable target ) {
+		synchronized( route ) {
+			if( isRetired( route ) ) {
+				return false;
+			}
+			replay( route );
+			route.target = target;
+			return true;
+		}
+	}
 
-		if( queue == null ) {
-			queue = new Queue( targetID );
-			state.pendingSend.put( targetID, queue );
+	/**
+	 * Saves a snapshot of the packets currently waiting to be delivered to
+	 * the given file. The snapshot is written to a temporary file alongside
+	 * it, forced to disk, and then renamed over it, so the file always holds
+	 * either the previous snapshot or this one in full.
+	 */
+	public synchronized void checkpoint( File file ) throws IOException {
+		File temporary = new File( file.getPath() + ".tmp" );
+		FileOutputStream out = new FileOutputStream( temporary );
+		try {
+			BufferedOutputStream buffer = new BufferedOutputStream( out, SNAPSHOT_BUFFER_SIZE );
+			save( buffer );
+			buffer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
 		}
+		if( !temporary.renameTo( file ) ) {
+			// Some platforms will not rename over an existing file.
+			file.delete();
+			if( !temporary.renameTo( file ) ) {
+				throw new IOException( String.format( "Could not replace %s.", file ) );
+			}
+		}
+	}
 
-		queue.add( packet );
+	/**
+	 * Delivers pending packets in batches, each packed into a single write of
+	 * up to {@link #getBatchSize()} bytes, or as many as the target connection
+	 * has room for below its high watermark. A batch that fills a connection
+	 * ends the call, and the next batch follows once the connection has
+	 * written it out and asks for more.
+	 * <p>
+	 * If another thread is already draining the route, this returns right away
+	 * and leaves the work to that thread, which checks for newly queued
+	 * packets before giving up the route.
+	 * </p>
+	 */
+	private void drain( Route route, Queue sent ) {
+		while( route.target != null && !route.pending.isEmpty() && route.draining.compareAndSet( false, true ) ) {
+			try {
+				Writable target = route.target;
+				while( target != null && isWritable( target ) ) {
+					int limit = batchSize;
+					if( target instanceof Connection ) {
+						limit = Math.min( limit, ( (Connection) target ).getWritableBytes() );
+					}
+					List<EncodedPacket> batch = batch( route, limit );
+					if( batch.isEmpty() ) {
+						break;
+					}
+					try {
+						send( target, batch );
+					} catch( IOException exception ) {
+						log.info( "DELAY %s", batch.get( 0 ) );
+						return;
+					}
+					for( EncodedPacket packet : batch ) {
+						if( sent != null ) {
+							sent.add( packet );
+						}
+						route.pending.poll();
+						route.base.incrementAndGet();
+						route.size.decrementAndGet();
+					}
+					target = route.target;
+				}
+				if( target == null || !isWritable( target ) ) {
+					return;
+				}
+			} finally {
+				route.draining.set( false );
+			}
+		}
+	}
 
+	private void enqueue( Object packet, String targetID ) {
+		EncodedPacket encoded = EncodedPacket.encode( packet );
+		Route route = route( targetID );
+		while( !reserve( route ) ) {
+			// The route was retired in the meantime. Start a new one.
+			route = route( targetID );
+		}
+		route.pending.offer( encoded );
 	}
 
 	public void flush( String targetID ) {
@@ -67,56 +391,348 @@ public class Transporter {
 	}
 
 	public void flush( String targetID, Queue sent ) {
-		Writable target = targets.get( targetID );
-		if( target != null ) {
-			Queue queue = state.pendingSend.get( targetID );
-			if( queue != null ) {
-				synchronized( queue ) {
-					Iterator<Object> it = queue.iterator();
-					while( it.hasNext() ) {
-						Object packet = it.next();
-						try {
-							send( target, packet );
-							if( sent != null ) {
-								sent.add( packet );
-							}
-							it.remove();
-						} catch( IOException exception ) {
-							log.info( "DELAY %s", packet );
-						} catch( BufferOverflowException exception ) {
-							log.info( "DELAY %s", packet );
-						}
-					}
-				}
-			}
+		Route route = targetID != null ? routes.get( targetID ) : null;
+		if( route != null ) {
+			drain( route, sent );
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes packed into a single write when
+	 *         delivering pending packets.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the number of packets that may be waiting for an available
+	 *         target before it is considered congested.
+	 */
+	public int getMaximumPending() {
+		return maximumPending;
+	}
+
+	public OfflineStore getOfflineStore() {
+		return offlineStore;
+	}
+
+	/**
+	 * @return the number of targets this transporter is keeping track of:
+	 *         those that are available, or have packets waiting in memory.
+	 */
+	public int getRouteCount() {
+		return routes.size();
+	}
+
+	/**
+	 * @return the target most recently made available under the given ID, or
+	 *         {@code null} if that target is not currently available.
+	 */
+	public Writable getTarget( String targetID ) {
+		Route route = targetID != null ? routes.get( targetID ) : null;
+		return route != null ? route.target : null;
+	}
+
+	/**
+	 * An available target is congested if it is a {@link Connection} that is
+	 * no longer writable, or if the number of packets waiting for it has
+	 * reached the {@link #getMaximumPending() maximum}. Targets that are not
+	 * available are never congested, since nothing is being sent to them.
+	 *
+	 * @return {@code true} if senders to the given target should hold back.
+	 */
+	public boolean isCongested( String targetID ) {
+		Route route = targetID != null ? routes.get( targetID ) : null;
+		Writable target = route != null ? route.target : null;
+		if( target == null ) {
+			return false;
+		}
+		return !isWritable( target ) || route.size.get() >= maximumPending;
+	}
+
+	/**
+	 * @return {@code true} if the given target is unavailable, or is writable
+	 *         and has no more than half of the {@link #getMaximumPending()
+	 *         maximum} number of packets waiting for it.
+	 */
+	public boolean isDrained( String targetID ) {
+		Route route = targetID != null ? routes.get( targetID ) : null;
+		Writable target = route != null ? route.target : null;
+		if( target == null ) {
+			return true;
 		}
+		return isWritable( target ) && route.size.get() <= maximumPending / 2;
 	}
 
-	private void restore( Collection<Queue> pendingSend ) {
-		for( Queue queue : pendingSend ) {
-			state.pendingSend.put( queue.id(), queue );
+	/**
+	 * Moves every packet held in the offline store for the given route to the
+	 * end of its pending queue. The caller must hold the route's lock.
+	 */
+	private void replay( Route route ) {
+		OfflineStore store = offlineStore;
+		if( store == null ) {
+			return;
+		}
+		try {
+			List<EncodedPacket> packets = store.load( route.id );
+			if( packets.isEmpty() ) {
+				return;
+			}
+			for( EncodedPacket packet : packets ) {
+				route.pending.offer( packet );
+				route.size.incrementAndGet();
+			}
+			store.remove( route.id );
+			log.info( "REPLAY %s [%d packets]", route.id, Integer.valueOf( packets.size() ) );
+		} catch( IOException exception ) {
+			log.info( "ERROR T/%s %s", exception.getClass().getName(), exception.getLocalizedMessage() );
 		}
 	}
 
+	/**
+	 * Adds every packet saved in the given state to the end of its target's
+	 * pending queue.
+	 */
 	public void restore( State state ) {
-		restore( state.pendingSend.values() );
+		for( Queue queue : state.pendingSend.values() ) {
+			rebase( queue.id(), queue.getFirstSequence() - 1 );
+			for( Object packet : queue ) {
+				enqueue( packet, queue.id() );
+			}
+		}
+	}
+
+	/**
+	 * Adds every packet in the snapshot read from the given stream to the end
+	 * of its target's pending queue, one packet at a time.
+	 *
+	 * @return the number of packets restored.
+	 */
+	public int restore( InputStream in ) throws IOException {
+		DataInputStream d = new DataInputStream( in );
+		readHeader( d );
+		int count = 0;
+		while( d.readBoolean() ) {
+			String id = d.readUTF();
+			rebase( id, d.readInt() );
+			for( EncodedPacket packet = readPacket( d ); packet != null; packet = readPacket( d ) ) {
+				enqueue( packet, id );
+				count++;
+			}
+		}
+		return count;
 	}
 
+	/**
+	 * Restores the snapshot last {@link #checkpoint(File) checkpointed} to the
+	 * given file, if there is one.
+	 *
+	 * @return the number of packets restored.
+	 */
+	public int restore( File file ) throws IOException {
+		if( !file.exists() ) {
+			return 0;
+		}
+		InputStream in = new BufferedInputStream( new FileInputStream( file ), SNAPSHOT_BUFFER_SIZE );
+		try {
+			int count = restore( in );
+			log.info( "RESTORE %s [%d packets]", file, Integer.valueOf( count ) );
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Numbers the packets about to be restored for the given target from
+	 * {@code base + 1} on, as they were numbered when saved, unless the target
+	 * already has packets pending.
+	 */
+	private void rebase( String targetID, int base ) {
+		Route route = route( targetID );
+		if( route.size.get() == 0 ) {
+			route.base.set( base );
+		}
+	}
+
+	/**
+	 * Forgets the given route if it has no target and nothing pending.
+	 */
+	private void retire( Route route ) {
+		synchronized( route ) {
+			if( route.target == null && route.size.compareAndSet( 0, RETIRED ) ) {
+				routes.remove( route.id, route );
+			}
+		}
+	}
+
+	private Route route( String targetID ) {
+		Route route = routes.get( targetID );
+		if( route == null ) {
+			Route created = new Route( targetID );
+			route = routes.putIfAbsent( targetID, created );
+			if( route == null ) {
+				route = created;
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * @return a snapshot of the packets currently waiting to be delivered,
+	 *         which may later be handed to {@link #restore(State)}.
+	 */
 	public State save() {
+		State state = new State();
+		for( Route route : routes.values() ) {
+			Queue queue = null;
+			for( EncodedPacket packet : route.pending ) {
+				if( queue == null ) {
+					queue = new Queue( route.id, route.base.get() );
+					state.pendingSend.put( route.id, queue );
+				}
+				queue.add( packet );
+			}
+		}
 		return state;
 	}
 
+	/**
+	 * Writes a snapshot of the packets currently waiting to be delivered to
+	 * the given stream, straight from their pending queues, along with the
+	 * number each queue's first packet follows. Packets queued while the
+	 * snapshot is being written may or may not be included.
+	 */
+	public void save( OutputStream out ) throws IOException {
+		DataOutputStream d = new DataOutputStream( out );
+		writeHeader( d );
+		for( Route route : routes.values() ) {
+			if( route.pending.isEmpty() ) {
+				continue;
+			}
+			d.writeBoolean( true );
+			d.writeUTF( route.id );
+			d.writeInt( route.base.get() );
+			for( EncodedPacket packet : route.pending ) {
+				writePacket( d, packet );
+			}
+			d.writeInt( -1 );
+		}
+		d.writeBoolean( false );
+		d.flush();
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of bytes packed into a single write when
+	 *            delivering pending packets. A packet larger than this is
+	 *            still written, on its own.
+	 */
+	public void setBatchSize( int batchSize ) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param offlineStore
+	 *            the store in which to keep packets for targets that are not
+	 *            available, or {@code null} to keep them in memory.
+	 */
+	public void setOfflineStore( OfflineStore offlineStore ) {
+		this.offlineStore = offlineStore;
+	}
+
+	/**
+	 * @param maximumPending
+	 *            the number of packets that may be waiting for an available
+	 *            target before it is considered congested.
+	 */
+	public void setMaximumPending( int maximumPending ) {
+		this.maximumPending = maximumPending;
+	}
+
 	public void transport( Object packet, String targetID ) {
 		transport( packet, targetID, null );
 	}
 
 	public void transport( Object packet, String targetID, Queue sent ) {
-		enqueue( packet, targetID );
+		if( targetID == null ) {
+			log.info( "DROP %s", packet );
+			return;
+		}
+		EncodedPacket encoded = EncodedPacket.encode( packet );
+		if( offlineStore != null ) {
+			Route route = route( targetID );
+			if( route.target == null && store( route, encoded ) ) {
+				retire( route );
+				return;
+			}
+		}
+		enqueue( encoded, targetID );
 		flush( targetID, sent );
 	}
 
-	public void unavailable( String targetID ) {
-		targets.remove( targetID );
+	/**
+	 * Hands the given packet to the offline store, provided its target is
+	 * still unavailable.
+	 *
+	 * @return {@code true} if the packet was stored, or was rejected by the
+	 *         store and dropped; {@code false} if it should be kept in memory
+	 *         instead.
+	 */
+	private boolean store( Route route, EncodedPacket packet ) {
+		OfflineStore store = offlineStore;
+		synchronized( route ) {
+			if( store == null || route.target != null || isRetired( route ) ) {
+				return false;
+			}
+			try {
+				if( !store.store( route.id, packet ) ) {
+					log.info( "DROP %s", packet );
+				}
+				return true;
+			} catch( IOException exception ) {
+				log.info( "ERROR T/%s %s", exception.getClass().getName(), exception.getLocalizedMessage() );
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Detaches the given target from its route, if it is still the one
+	 * attached. A target that has since been replaced, such as by a client
+	 * reconnecting before its old connection was cleaned up, keeps its route.
+	 *
+	 * @param target
+	 *            the target going away.
+	 * @param targetID
+	 *            the ID the target was made available under.
+	 */
+	public void unavailable( Writable target, String targetID ) {
+		Route route = targetID != null ? routes.get( targetID ) : null;
+		if( route == null ) {
+			return;
+		}
+		synchronized( route ) {
+			if( route.target != target ) {
+				return;
+			}
+			route.target = null;
+			// Move anything still waiting into the offline store, unless
+			// another thread is in the middle of delivering it.
+			if( offlineStore != null && route.draining.compareAndSet( false, true ) ) {
+				try {
+					for( EncodedPacket packet = route.pending.peek(); packet != null && store( route, packet ); packet = route.pending.peek() ) {
+						route.pending.poll();
+						route.base.incrementAndGet();
+						route.size.decrementAndGet();
+					}
+				} finally {
+					route.draining.set( false );
+				}
+			}
+			retire( route );
+		}
 	}
 
 }
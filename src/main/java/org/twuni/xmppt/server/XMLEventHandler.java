@@ -1,10 +1,13 @@
 package org.twuni.xmppt.server;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.twuni.Logger;
 import org.twuni.nio.server.Connection;
 import org.twuni.nio.server.EventHandler;
+import org.twuni.nio.server.Stage;
 import org.twuni.xmppt.xml.XMLElement;
 import org.twuni.xmppt.xml.XMLElementParser;
 
@@ -14,9 +17,9 @@ public class XMLEventHandler extends EventHandler {
 		return new Logger( XMLEventHandler.class.getName() );
 	}
 
-	private static final XMLElementParser XML = new XMLElementParser();
-
 	private final Logger log;
+	private final ConcurrentHashMap<Connection, XMLElementParser> parsers = new ConcurrentHashMap<Connection, XMLElementParser>();
+	private volatile Stage stage;
 
 	public XMLEventHandler() {
 		this( defaultLogger() );
@@ -26,12 +29,44 @@ public class XMLEventHandler extends EventHandler {
 		log = logger;
 	}
 
+	public Stage getStage() {
+		return stage;
+	}
+
 	@Override
 	public void onData( Connection connection, byte [] data ) {
-		log.info( "RECV C/%s [%d bytes] %s", connection.id(), Integer.valueOf( data.length ), new String( data, 0, data.length ) );
-		List<XMLElement> xml = XML.parse( data );
-		for( XMLElement element : xml ) {
-			onXMLElement( connection, element );
+		onData( connection, ByteBuffer.wrap( data ) );
+	}
+
+	@Override
+	public void onData( final Connection connection, ByteBuffer data ) {
+
+		int length = data.remaining();
+		log.info( "RECV C/%s [%d bytes]", connection.id(), Integer.valueOf( length ) );
+
+		// Direct buffers are parsed in place, without copying them out first.
+		List<XMLElement> xml = parser( connection ).feed( data );
+
+		for( final XMLElement element : xml ) {
+			process( connection, new Runnable() {
+
+				@Override
+				public void run() {
+					onXMLElement( connection, element );
+				}
+
+			} );
+		}
+
+	}
+
+	@Override
+	public void onDisconnected( Connection connection ) {
+		super.onDisconnected( connection );
+		parsers.remove( connection );
+		Stage s = stage;
+		if( s != null ) {
+			s.release( connection );
 		}
 	}
 
@@ -39,4 +74,49 @@ public class XMLEventHandler extends EventHandler {
 		log.debug( "XML C/%s %s", connection.id(), element );
 	}
 
+	/**
+	 * @return the parser for the stream read from the given connection, which
+	 *         keeps whatever a read leaves incomplete until the next one.
+	 */
+	private XMLElementParser parser( Connection connection ) {
+		XMLElementParser parser = parsers.get( connection );
+		if( parser == null ) {
+			XMLElementParser created = new XMLElementParser( true );
+			parser = parsers.putIfAbsent( connection, created );
+			if( parser == null ) {
+				parser = created;
+			}
+		}
+		return parser;
+	}
+
+	/**
+	 * Runs the given task on behalf of the given connection: on this handler's
+	 * {@link #setStage(Stage) stage} if it has one, after anything else
+	 * submitted for the same connection, or right away otherwise.
+	 *
+	 * @param connection
+	 *            the connection on whose behalf the task runs.
+	 * @param task
+	 *            the task to run.
+	 */
+	protected void process( Connection connection, Runnable task ) {
+		Stage s = stage;
+		if( s != null ) {
+			s.execute( connection, task );
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * @param stage
+	 *            the stage on which to handle parsed elements, so that the
+	 *            dispatcher that read them only has to parse them, or
+	 *            {@code null} to handle them on the dispatcher itself.
+	 */
+	public void setStage( Stage stage ) {
+		this.stage = stage;
+	}
+
 }
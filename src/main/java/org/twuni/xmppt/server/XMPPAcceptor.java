@@ -6,7 +6,10 @@ import java.net.SocketAddress;
 import java.nio.channels.Selector;
 
 import org.twuni.nio.server.Acceptor;
+import org.twuni.nio.server.BlockingDispatcher;
+import org.twuni.nio.server.BufferPool;
 import org.twuni.nio.server.ConnectionFactory;
+import org.twuni.nio.server.DispatcherPool;
 import org.twuni.nio.server.DispatcherProvider;
 import org.twuni.nio.server.EventHandler;
 import org.twuni.nio.server.auth.Authenticator;
@@ -14,6 +17,10 @@ import org.twuni.nio.server.auth.AutomaticAuthenticator;
 
 public class XMPPAcceptor extends Acceptor {
 
+	private static DispatcherProvider createDispatcherProvider( EventHandler eventHandler, boolean blocking, long maximumFreeBytes ) throws IOException {
+		return blocking ? new BlockingDispatcher( eventHandler, new BufferPool( maximumFreeBytes ) ) : new DispatcherPool( eventHandler, maximumFreeBytes );
+	}
+
 	private static EventHandler createEventHandler( String serviceName, Authenticator authenticator ) {
 		return new XMPPEventHandler( serviceName, authenticator );
 	}
@@ -48,10 +55,34 @@ public class XMPPAcceptor extends Acceptor {
 		super( port, createEventHandler( serviceName, authenticator ), CONNECTION_FACTORY );
 	}
 
+	/**
+	 * @param blocking
+	 *            if {@code true}, each connection is serviced by a thread of
+	 *            its own with blocking I/O, by way of a
+	 *            {@link BlockingDispatcher}. Otherwise, connections share a
+	 *            {@link DispatcherPool} of selector-based event loops.
+	 */
+	public XMPPAcceptor( int port, String serviceName, Authenticator authenticator, boolean blocking ) throws IOException {
+		this( port, serviceName, authenticator, blocking, BufferPool.DEFAULT_MAXIMUM_FREE_BYTES );
+	}
+
+	/**
+	 * @param maximumFreeBytes
+	 *            the maximum number of bytes each dispatcher may keep in free
+	 *            buffers between reads and writes.
+	 */
+	public XMPPAcceptor( int port, String serviceName, Authenticator authenticator, boolean blocking, long maximumFreeBytes ) throws IOException {
+		this( port, createEventHandler( serviceName, authenticator ), blocking, maximumFreeBytes );
+	}
+
 	public XMPPAcceptor( int port, String serviceName, Authenticator authenticator, int dispatcherCount ) throws IOException {
 		super( port, createEventHandler( serviceName, authenticator ), CONNECTION_FACTORY, dispatcherCount );
 	}
 
+	private XMPPAcceptor( int port, EventHandler eventHandler, boolean blocking, long maximumFreeBytes ) throws IOException {
+		super( port, createDispatcherProvider( eventHandler, blocking, maximumFreeBytes ), eventHandler, CONNECTION_FACTORY );
+	}
+
 	public XMPPAcceptor( SocketAddress localServerEndpoint, DispatcherProvider dispatcherProvider, String serviceName, Authenticator authenticator ) throws IOException {
 		super( localServerEndpoint, dispatcherProvider, createEventHandler( serviceName, authenticator ), CONNECTION_FACTORY );
 	}
@@ -8,18 +8,23 @@ import org.twuni.nio.server.EventHandler;
 
 public class XMPPConnection extends Connection {
 
+	/**
+	 * The state of an XMPP stream. It is written by whichever thread handles
+	 * the stream's stanzas, one at a time, and read by the connection's
+	 * dispatcher as well, so every field is volatile.
+	 */
 	public static class State {
 
-		public int sent;
-		public int received;
-		public String username;
-		public String resource;
-		public String streamID;
-		public String serviceName;
-		public String sessionID;
-		public boolean available;
-		public String streamManagementID;
-		public boolean streamManagementEnabled;
+		public volatile int sent;
+		public volatile int received;
+		public volatile String username;
+		public volatile String resource;
+		public volatile String streamID;
+		public volatile String serviceName;
+		public volatile String sessionID;
+		public volatile boolean available;
+		public volatile String streamManagementID;
+		public volatile boolean streamManagementEnabled;
 
 		public boolean hasSession() {
 			return sessionID != null;
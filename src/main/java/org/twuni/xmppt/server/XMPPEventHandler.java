@@ -1,9 +1,12 @@
 package org.twuni.xmppt.server;
 
-import java.nio.BufferOverflowException;
+import java.io.IOException;
 
 import org.twuni.Logger;
 import org.twuni.nio.server.Connection;
+import org.twuni.nio.server.Dispatcher;
+import org.twuni.nio.server.EncodedPacket;
+import org.twuni.nio.server.FlowControl;
 import org.twuni.nio.server.Transporter;
 import org.twuni.nio.server.auth.AuthenticationException;
 import org.twuni.nio.server.auth.Authenticator;
@@ -57,9 +60,12 @@ public class XMPPEventHandler extends XMLEventHandler {
 
 	private final Logger log;
 	private final Transporter transporter;
+	private final FlowControl flowControl;
 	private final Authenticator authenticator;
 	private final String serviceName;
 	private final PacketTransformer transformer;
+	private volatile long keepaliveInterval;
+	private volatile long negotiationTimeout;
 
 	public XMPPEventHandler( String serviceName, Authenticator authenticator ) {
 		this( serviceName, authenticator, defaultTransporter(), defaultTransformer(), defaultLogger() );
@@ -95,9 +101,40 @@ public class XMPPEventHandler extends XMLEventHandler {
 		this.authenticator = authenticator;
 		this.transporter = transporter;
 		this.transformer = transformer;
+		flowControl = new FlowControl( transporter, logger );
 		log = logger;
 	}
 
+	/**
+	 * @return the flow control that suspends reading from senders while their
+	 *         recipients are congested.
+	 */
+	public FlowControl getFlowControl() {
+		return flowControl;
+	}
+
+	/**
+	 * @return the number of milliseconds a connection may go without any
+	 *         traffic before a keepalive is sent to it, or zero if keepalives
+	 *         are disabled.
+	 */
+	public long getKeepaliveInterval() {
+		return keepaliveInterval;
+	}
+
+	/**
+	 * @return the number of milliseconds a connection has to authenticate and
+	 *         bind a resource before it is dropped, or zero if there is no
+	 *         deadline.
+	 */
+	public long getNegotiationTimeout() {
+		return negotiationTimeout;
+	}
+
+	public Transporter getTransporter() {
+		return transporter;
+	}
+
 	private String jid( Connection connection ) {
 		return state( connection ).jid( serviceName );
 	}
@@ -129,11 +166,33 @@ public class XMPPEventHandler extends XMLEventHandler {
 	}
 
 	@Override
-	public void onDisconnected( Connection connection ) {
-		super.onDisconnected( connection );
-		transporter.unavailable( jid( connection ) );
-		State s = state( connection );
-		s.available = false;
+	public void onConnected( Connection connection ) {
+		super.onConnected( connection );
+		if( keepaliveInterval > 0 ) {
+			scheduleKeepalive( connection, keepaliveInterval );
+		}
+		if( negotiationTimeout > 0 ) {
+			scheduleNegotiationDeadline( connection, negotiationTimeout );
+		}
+	}
+
+	@Override
+	public void onDisconnected( final Connection connection ) {
+		// Let any stanzas still being processed for this connection finish
+		// before it is made unavailable.
+		process( connection, new Runnable() {
+
+			@Override
+			public void run() {
+				XMPPEventHandler.super.onDisconnected( connection );
+				String jid = jid( connection );
+				transporter.unavailable( connection, jid );
+				flowControl.release( jid );
+				State s = state( connection );
+				s.available = false;
+			}
+
+		} );
 	}
 
 	public void onEnable( Connection connection, Enable enable ) {
@@ -167,6 +226,7 @@ public class XMPPEventHandler extends XMLEventHandler {
 
 	public void onMessage( Connection connection, Message message ) {
 		transporter.transport( message.from( jid( connection ) ), message.to() );
+		flowControl.block( connection, message.to() );
 	}
 
 	public void onPacket( Connection connection, Object packet ) {
@@ -253,8 +313,9 @@ public class XMPPEventHandler extends XMLEventHandler {
 	public void onWriteRequested( Connection connection ) {
 		super.onWriteRequested( connection );
 		String jid = jid( connection );
-		if( jid != null ) {
+		if( jid != null && connection.isWritable() ) {
 			transporter.flush( jid );
+			flowControl.release( jid );
 		}
 	}
 
@@ -266,13 +327,110 @@ public class XMPPEventHandler extends XMLEventHandler {
 		}
 	}
 
+	private void scheduleKeepalive( final Connection connection, long delay ) {
+		schedule( connection, new Runnable() {
+
+			@Override
+			public void run() {
+				long interval = keepaliveInterval;
+				if( connection.isClosed() || interval <= 0 ) {
+					return;
+				}
+				long quiet = System.currentTimeMillis() - connection.getLastActivity();
+				if( quiet >= interval ) {
+					// Streams with stream management get an acknowledgment
+					// request, which also lets them report their progress.
+					// Everyone else gets whitespace, which any stream allows.
+					send( connection, state( connection ).isStreamManagementEnabled() ? new AcknowledgmentRequest() : " " );
+					quiet = 0;
+				}
+				scheduleKeepalive( connection, interval - quiet );
+			}
+
+		}, delay );
+	}
+
+	private void scheduleNegotiationDeadline( final Connection connection, long delay ) {
+		schedule( connection, new Runnable() {
+
+			@Override
+			public void run() {
+				// Checked in turn with the stanzas being handled, so that a
+				// bind already under way is not cut short.
+				process( connection, new Runnable() {
+
+					@Override
+					public void run() {
+						if( connection.isClosed() || state( connection ).isBound() ) {
+							return;
+						}
+						terminate( connection, new StreamError( new XMLElement( "connection-timeout" ) ) );
+					}
+
+				} );
+			}
+
+		}, delay );
+	}
+
 	private void send( Connection connection, Object packet ) {
-		byte [] b = packet.toString().getBytes();
-		try {
-			connection.write( b, 0, b.length );
-		} catch( BufferOverflowException exception ) {
-			log.info( "DELAY C/%s %s", connection.id(), new String( b, 0, b.length ) );
-		}
+		connection.write( EncodedPacket.encode( packet ).getBytes() );
+	}
+
+	/**
+	 * @param keepaliveInterval
+	 *            the number of milliseconds a connection may go without any
+	 *            traffic before a keepalive is sent to it, or zero to disable
+	 *            keepalives. This applies to connections established after it
+	 *            is set.
+	 */
+	public void setKeepaliveInterval( long keepaliveInterval ) {
+		this.keepaliveInterval = keepaliveInterval;
+	}
+
+	/**
+	 * @param negotiationTimeout
+	 *            the number of milliseconds a connection has to authenticate
+	 *            and bind a resource before it is sent a
+	 *            {@code connection-timeout} stream error and closed, or zero
+	 *            for no deadline. This applies to connections established
+	 *            after it is set.
+	 */
+	public void setNegotiationTimeout( long negotiationTimeout ) {
+		this.negotiationTimeout = negotiationTimeout;
+	}
+
+	/**
+	 * Sends the given stream error and closes the stream, then closes the
+	 * connection once both have been flushed. This all happens on the thread
+	 * of the dispatcher that owns the connection, after anything already
+	 * written to it, following the connection if it moves to another
+	 * dispatcher in the meantime.
+	 */
+	private void terminate( final Connection connection, final StreamError error ) {
+		final Dispatcher owner = connection.getDispatcher();
+		owner.execute( new Runnable() {
+
+			@Override
+			public void run() {
+				if( connection.getDispatcher() != owner ) {
+					terminate( connection, error );
+					return;
+				}
+				if( connection.isClosed() ) {
+					return;
+				}
+				send( connection, error );
+				send( connection, new Stream().close() );
+				try {
+					owner.flush( connection );
+				} catch( IOException exception ) {
+					onException( exception );
+				}
+				connection.close();
+			}
+
+		} );
 	}
 
 }
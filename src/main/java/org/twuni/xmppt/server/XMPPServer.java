@@ -1,24 +1,102 @@
 package org.twuni.xmppt.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.twuni.nio.server.Acceptor;
+import org.twuni.nio.server.BufferPool;
+import org.twuni.nio.server.MappedOfflineStore;
+import org.twuni.nio.server.OfflineStore;
+import org.twuni.nio.server.Stage;
+import org.twuni.nio.server.Transporter;
 import org.twuni.nio.server.auth.AutomaticAuthenticator;
 
 public class XMPPServer {
 
 	private static final int DEFAULT_PORT = 5222;
+	private static final int CHECKPOINT_INTERVAL = 60;
+
+	private static void checkpoint( Transporter transporter, File snapshot ) {
+		try {
+			transporter.checkpoint( snapshot );
+		} catch( IOException exception ) {
+			exception.printStackTrace();
+		}
+	}
+
+	/**
+	 * Restores the given transporter from the given snapshot, and then saves
+	 * a fresh snapshot there every {@link #CHECKPOINT_INTERVAL} seconds and
+	 * once more when the server shuts down.
+	 */
+	private static void checkpoint( final Transporter transporter, final File snapshot, int interval ) throws IOException {
+
+		transporter.restore( snapshot );
+
+		ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+
+			@Override
+			public Thread newThread( Runnable task ) {
+				Thread thread = new Thread( task, "Checkpoint" );
+				thread.setDaemon( true );
+				return thread;
+			}
+
+		} );
+
+		checkpoints.scheduleWithFixedDelay( new Runnable() {
+
+			@Override
+			public void run() {
+				checkpoint( transporter, snapshot );
+			}
+
+		}, interval, interval, TimeUnit.SECONDS );
+
+		Runtime.getRuntime().addShutdownHook( new Thread( "Checkpoint" ) {
+
+			@Override
+			public void run() {
+				checkpoint( transporter, snapshot );
+			}
+
+		} );
+
+	}
 
 	public static void main( String [] args ) {
 
 		int port = DEFAULT_PORT;
 		String serviceName = null;
+		boolean blocking = false;
+		int workers = 0;
+		File offlineDirectory = null;
+		File snapshot = null;
+		long bufferPoolBytes = BufferPool.DEFAULT_MAXIMUM_FREE_BYTES;
 
 		for( int i = 0; i < args.length; i++ ) {
 			String arg = args[i];
 			if( "-p".equals( arg ) ) {
 				i++;
 				port = Integer.parseInt( args[i] );
+			} else if( "-b".equals( arg ) ) {
+				blocking = true;
+			} else if( "-d".equals( arg ) ) {
+				i++;
+				offlineDirectory = new File( args[i] );
+			} else if( "-s".equals( arg ) ) {
+				i++;
+				snapshot = new File( args[i] );
+			} else if( "-m".equals( arg ) ) {
+				i++;
+				bufferPoolBytes = Long.parseLong( args[i] ) * 1024;
+			} else if( "-w".equals( arg ) ) {
+				i++;
+				workers = Integer.parseInt( args[i] );
 			} else if( i == args.length - 1 ) {
 				serviceName = arg;
 			} else {
@@ -27,15 +105,29 @@ public class XMPPServer {
 		}
 
 		if( serviceName == null ) {
-			System.err.println( String.format( "Usage: java %s [-p <port>] <service_name>", XMPPAcceptor.class.getName() ) );
+			System.err.println( String.format( "Usage: java %s [-p <port>] [-b] [-m <buffer_pool_kilobytes>] [-w <workers>] [-d <offline_directory>] [-s <snapshot_file>] <service_name>", XMPPAcceptor.class.getName() ) );
 			return;
 		}
 
 		try {
 			System.out.println( String.format( "----- [%2$s:%1$d] -----", Integer.valueOf( port ), serviceName ) );
-			Acceptor acceptor = new XMPPAcceptor( port, serviceName, new AutomaticAuthenticator() );
+			Acceptor acceptor = new XMPPAcceptor( port, serviceName, new AutomaticAuthenticator(), blocking, bufferPoolBytes );
+			if( workers > 0 ) {
+				( (XMLEventHandler) acceptor.getEventHandler() ).setStage( new Stage( "Stanzas", workers ) );
+			}
+			OfflineStore offlineStore = null;
+			if( offlineDirectory != null ) {
+				offlineStore = new MappedOfflineStore( offlineDirectory );
+				( (XMPPEventHandler) acceptor.getEventHandler() ).getTransporter().setOfflineStore( offlineStore );
+			}
+			if( snapshot != null ) {
+				checkpoint( ( (XMPPEventHandler) acceptor.getEventHandler() ).getTransporter(), snapshot, CHECKPOINT_INTERVAL );
+			}
 			acceptor.run();
 			acceptor.close();
+			if( offlineStore != null ) {
+				offlineStore.close();
+			}
 		} catch( IOException exception ) {
 			exception.printStackTrace();
 		}
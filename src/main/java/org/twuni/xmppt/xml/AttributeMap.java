@@ -0,0 +1,208 @@
+package org.twuni.xmppt.xml;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An attribute map keeps the names and values of an element's attributes side
+ * by side in a single array, in the order they were added. Elements rarely
+ * have more than a handful of attributes, so a linear scan finds one faster
+ * than hashing its name would, and no entry objects are kept around. The
+ * array is only created once the first attribute is added.
+ */
+class AttributeMap extends AbstractMap<String, String> {
+
+	private class Attribute implements Map.Entry<String, String> {
+
+		private final int index;
+
+		public Attribute( int index ) {
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals( Object object ) {
+			if( !( object instanceof Map.Entry ) ) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+			return getKey().equals( entry.getKey() ) && ( getValue() == null ? entry.getValue() == null : getValue().equals( entry.getValue() ) );
+		}
+
+		@Override
+		public String getKey() {
+			return entries[index];
+		}
+
+		@Override
+		public String getValue() {
+			return entries[index + 1];
+		}
+
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ ( getValue() == null ? 0 : getValue().hashCode() );
+		}
+
+		@Override
+		public String setValue( String value ) {
+			String previous = entries[index + 1];
+			entries[index + 1] = value;
+			return previous;
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+
+	}
+
+	private class Cursor implements Iterator<Map.Entry<String, String>> {
+
+		private int index;
+		private boolean removable;
+
+		@Override
+		public boolean hasNext() {
+			return index < length;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if( !hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			Attribute attribute = new Attribute( index );
+			index += 2;
+			removable = true;
+			return attribute;
+		}
+
+		@Override
+		public void remove() {
+			if( !removable ) {
+				throw new IllegalStateException();
+			}
+			index -= 2;
+			removeAt( index );
+			removable = false;
+		}
+
+	}
+
+	private static final String [] EMPTY = new String [0];
+
+	private String [] entries = EMPTY;
+	private int length;
+
+	@Override
+	public void clear() {
+		entries = EMPTY;
+		length = 0;
+	}
+
+	@Override
+	public boolean containsKey( Object key ) {
+		return indexOf( key ) > -1;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+
+			@Override
+			public void clear() {
+				AttributeMap.this.clear();
+			}
+
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Cursor();
+			}
+
+			@Override
+			public int size() {
+				return AttributeMap.this.size();
+			}
+
+		};
+	}
+
+	@Override
+	public String get( Object key ) {
+		int index = indexOf( key );
+		return index > -1 ? entries[index + 1] : null;
+	}
+
+	private int indexOf( Object key ) {
+		if( key == null ) {
+			return -1;
+		}
+		for( int i = 0; i < length; i += 2 ) {
+			if( key.equals( entries[i] ) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String put( String key, String value ) {
+		if( key == null ) {
+			throw new NullPointerException();
+		}
+		int index = indexOf( key );
+		if( index > -1 ) {
+			String previous = entries[index + 1];
+			entries[index + 1] = value;
+			return previous;
+		}
+		if( length == entries.length ) {
+			String [] grown = new String [Math.max( 4, length << 1 )];
+			System.arraycopy( entries, 0, grown, 0, length );
+			entries = grown;
+		}
+		entries[length++] = key;
+		entries[length++] = value;
+		return null;
+	}
+
+	@Override
+	public String remove( Object key ) {
+		int index = indexOf( key );
+		if( index < 0 ) {
+			return null;
+		}
+		String previous = entries[index + 1];
+		removeAt( index );
+		return previous;
+	}
+
+	private void removeAt( int index ) {
+		System.arraycopy( entries, index + 2, entries, index, length - index - 2 );
+		entries[--length] = null;
+		entries[--length] = null;
+	}
+
+	@Override
+	public int size() {
+		return length >> 1;
+	}
+
+	/**
+	 * Shrinks the array backing this map to fit the attributes it holds.
+	 */
+	public void trimToSize() {
+		if( length < entries.length ) {
+			String [] trimmed = length > 0 ? new String [length] : EMPTY;
+			System.arraycopy( entries, 0, trimmed, 0, length );
+			entries = trimmed;
+		}
+	}
+
+}
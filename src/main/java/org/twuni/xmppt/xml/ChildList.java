@@ -0,0 +1,90 @@
+package org.twuni.xmppt.xml;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A child list keeps an element's children in a single array, in document
+ * order. The array is only created once the first child is added, so leaves
+ * cost nothing, and it can be {@link #trimToSize() trimmed} to fit once the
+ * element is complete.
+ */
+class ChildList extends AbstractCollection<XMLEntity> {
+
+	private class Cursor implements Iterator<XMLEntity> {
+
+		private int index;
+		private boolean removable;
+
+		@Override
+		public boolean hasNext() {
+			return index < size;
+		}
+
+		@Override
+		public XMLEntity next() {
+			if( !hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			removable = true;
+			return items[index++];
+		}
+
+		@Override
+		public void remove() {
+			if( !removable ) {
+				throw new IllegalStateException();
+			}
+			index--;
+			System.arraycopy( items, index + 1, items, index, size - index - 1 );
+			items[--size] = null;
+			removable = false;
+		}
+
+	}
+
+	private static final XMLEntity [] EMPTY = new XMLEntity [0];
+
+	private XMLEntity [] items = EMPTY;
+	private int size;
+
+	@Override
+	public boolean add( XMLEntity child ) {
+		if( size == items.length ) {
+			XMLEntity [] grown = new XMLEntity [Math.max( 2, size << 1 )];
+			System.arraycopy( items, 0, grown, 0, size );
+			items = grown;
+		}
+		items[size++] = child;
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		items = EMPTY;
+		size = 0;
+	}
+
+	@Override
+	public Iterator<XMLEntity> iterator() {
+		return new Cursor();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Shrinks the array backing this list to fit the children it holds.
+	 */
+	public void trimToSize() {
+		if( size < items.length ) {
+			XMLEntity [] trimmed = size > 0 ? new XMLEntity [size] : EMPTY;
+			System.arraycopy( items, 0, trimmed, 0, size );
+			items = trimmed;
+		}
+	}
+
+}
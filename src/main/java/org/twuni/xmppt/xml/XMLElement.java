@@ -1,10 +1,13 @@
 package org.twuni.xmppt.xml;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * An XML element. Unless given collections of their own, elements keep their
+ * attributes and children in compact, array-backed collections, which hold
+ * nothing at all until something is added to them.
+ */
 public class XMLElement extends XMLEntity {
 
 	public static final String ATTRIBUTE_NAMESPACE = "xmlns";
@@ -58,8 +61,8 @@ public class XMLElement extends XMLEntity {
 		super( parent );
 		this.prefix = prefix;
 		this.name = name;
-		this.attributes = attributes != null ? attributes : new HashMap<String, String>();
-		this.children = children != null ? children : new ArrayList<XMLEntity>();
+		this.attributes = attributes != null ? attributes : new AttributeMap();
+		this.children = children != null ? children : new ChildList();
 	}
 
 	public String attribute( String attributeName ) {
@@ -82,6 +85,24 @@ public class XMLElement extends XMLEntity {
 		return attribute( ATTRIBUTE_NAMESPACE );
 	}
 
+	/**
+	 * Shrinks the attributes and children of this element and of every
+	 * element inside it to fit, once the whole subtree is complete.
+	 */
+	void trimToSize() {
+		if( attributes instanceof AttributeMap ) {
+			( (AttributeMap) attributes ).trimToSize();
+		}
+		if( children instanceof ChildList ) {
+			( (ChildList) children ).trimToSize();
+			for( XMLEntity child : children ) {
+				if( child instanceof XMLElement ) {
+					( (XMLElement) child ).trimToSize();
+				}
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
 		XMLBuilder xml = new XMLBuilder( prefix, name );
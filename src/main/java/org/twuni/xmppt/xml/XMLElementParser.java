@@ -1,211 +1,732 @@
 package org.twuni.xmppt.xml;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
+/**
+ * An XML element parser turns bytes into {@link XMLElement}s as they arrive.
+ * Each parser keeps its tokenizer state, its stack of open elements and their
+ * namespace declarations from one call to {@link #feed(byte[], int, int)} to
+ * the next, so markup may be split across reads at any byte. Each top-level
+ * element is returned as soon as its end tag arrives, and only the current
+ * token and the elements still open are held in the meantime.
+ * <p>
+ * A parser created for a {@link #XMLElementParser(boolean) stream}, such as an
+ * XMPP stream, treats the first top-level element it opens as the stream's
+ * root. The root is returned, without children, as soon as its start tag has
+ * been read, and each of its children is then returned as a top-level element
+ * of its own. A new start tag with the same name as the root restarts the
+ * stream.
+ * </p>
+ * <p>
+ * Fed along with an {@link XMLStreamListener}, a parser instead reports each
+ * start tag, end tag and run of text to the listener as it reads them, without
+ * building a tree. Each element reported carries its attributes and its parent,
+ * but no children, unless the listener asks for the element to be
+ * {@link #materialize() materialized} when its start tag is reported, in which
+ * case the whole subtree is in place by the time its end tag is.
+ * </p>
+ * <p>
+ * Bytes may be fed from arrays or from heap or direct {@link ByteBuffer}s,
+ * which are scanned in place. Names, attribute values and text are decoded as
+ * UTF-8, and only take the cost of decoding when they contain non-ASCII
+ * characters. Names and attribute values found in the parser's
+ * {@link XMLSymbols symbol table} are not decoded at all, but taken from the
+ * table as they are, and end tags are matched against the element they close
+ * without being decoded either.
+ * </p>
+ * <p>
+ * A parser is not thread-safe. Every stream needs a parser of its own.
+ * </p>
+ */
 public class XMLElementParser {
 
 	static enum State {
-		START_DOCUMENT,
-		END_DOCUMENT,
-		START_ELEMENT,
-		ELEMENT_CONTENT,
-		END_ELEMENT,
-		START_ATTRIBUTE,
-		END_ATTRIBUTE
+		TEXT,
+		TAG,
+		START_TAG_NAME,
+		IN_TAG,
+		ATTRIBUTE_NAME,
+		AFTER_ATTRIBUTE_NAME,
+		BEFORE_ATTRIBUTE_VALUE,
+		ATTRIBUTE_VALUE,
+		EMPTY_TAG,
+		END_TAG_NAME,
+		PROCESSING_INSTRUCTION,
+		DECLARATION
 	}
 
-	private final Map<String, String> namespaces = new HashMap<String, String>();
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	private static final String NAMESPACE_DECLARATION_PREFIX = XMLElement.ATTRIBUTE_NAMESPACE + ":";
+	private static final String COMMENT = "--";
+	private static final String CDATA = "[CDATA[";
+	private static final String CDATA_END = "]]";
 
-	public List<XMLElement> parse( byte [] in ) {
-		return parse( in, 0, in.length );
+	private static boolean isWhitespace( byte b ) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
 	}
 
-	public List<XMLElement> parse( byte [] in, int offset, int length ) {
+	/**
+	 * @return {@code true} if the given bytes are the UTF-8 encoding of the
+	 *         given name. The name is encoded as it is compared, so neither
+	 *         side is copied.
+	 */
+	private static boolean matches( String name, byte [] in, int offset, int length ) {
+		int end = offset + length;
+		int at = offset;
+		for( int i = 0; i < name.length(); i++ ) {
+			int c = name.charAt( i );
+			if( c < 0x80 ) {
+				if( at == end || in[at++] != c ) {
+					return false;
+				}
+				continue;
+			}
+			int trailing;
+			if( c < 0x800 ) {
+				trailing = 1;
+				c = 0xC0 << 6 | c;
+			} else if( Character.isHighSurrogate( (char) c ) && i + 1 < name.length() ) {
+				trailing = 3;
+				c = 0xF0 << 18 | Character.toCodePoint( (char) c, name.charAt( ++i ) );
+			} else {
+				trailing = 2;
+				c = 0xE0 << 12 | c;
+			}
+			if( end - at <= trailing || in[at++] != (byte) ( c >> 6 * trailing ) ) {
+				return false;
+			}
+			while( trailing-- > 0 ) {
+				if( in[at++] != (byte) ( 0x80 | c >> 6 * trailing & 0x3F ) ) {
+					return false;
+				}
+			}
+		}
+		return at == end;
+	}
 
-		// FIXME: Implement streaming for this -- it only works if the given
-		// buffer+offset+length contains the entire XML message.
+	private static boolean sameName( XMLElement a, XMLElement b ) {
+		return a.name.equals( b.name ) && ( a.prefix == null ? b.prefix == null : a.prefix.equals( b.prefix ) );
+	}
 
-		List<XMLElement> root = new ArrayList<XMLElement>();
-		Stack<XMLElement> tree = new Stack<XMLElement>();
-		State state = State.START_DOCUMENT;
-		String prefix = null;
+	private final boolean stream;
+	private final XMLSymbols symbols;
+	private final List<XMLElement> tree = new ArrayList<XMLElement>();
+	private final List<Map<String, String>> scopes = new ArrayList<Map<String, String>>();
+
+	private State state = State.TEXT;
+	private byte [] token = new byte [64];
+	private char [] chars = new char [64];
+	private int tokenLength;
+	private byte previous;
+	private byte quote;
+	private String attributeName;
+	private XMLElement pending;
+	private Map<String, String> pendingScope;
+	private XMLElement root;
+	private List<XMLElement> parsed;
+	private XMLStreamListener listener;
+	private int materialized = -1;
+	private boolean materializeRequested;
+
+	/**
+	 * Creates a parser for a sequence of XML documents, each returned once it
+	 * is complete.
+	 */
+	public XMLElementParser() {
+		this( false );
+	}
 
-		for( int i = 0; i < length; i++ ) {
+	/**
+	 * @param stream
+	 *            {@code true} if the bytes fed to this parser form a stream,
+	 *            whose root is returned once it opens and whose children are
+	 *            each returned once they close.
+	 */
+	public XMLElementParser( boolean stream ) {
+		this( stream, XMLSymbols.getDefault() );
+	}
 
-			int start = offset + i;
-			byte b = in[start];
-			int end = start + 1;
+	/**
+	 * @param stream
+	 *            {@code true} if the bytes fed to this parser form a stream,
+	 *            whose root is returned once it opens and whose children are
+	 *            each returned once they close.
+	 * @param symbols
+	 *            the names and namespaces this parser returns canonical
+	 *            instances of.
+	 */
+	public XMLElementParser( boolean stream, XMLSymbols symbols ) {
+		this.stream = stream;
+		this.symbols = symbols;
+	}
 
-			switch( b ) {
+	private void addText( XMLElement parent, String text ) {
+		XMLText node = new XMLText( parent, text );
+		if( isBuilding( parent ) ) {
+			parent.children.add( node );
+		}
+		if( listener != null ) {
+			listener.onText( node );
+		}
+	}
 
-				case '<':
+	private void append( byte b ) {
+		if( tokenLength == token.length ) {
+			byte [] grown = new byte [token.length << 1];
+			System.arraycopy( token, 0, grown, 0, tokenLength );
+			token = grown;
+		}
+		token[tokenLength++] = b;
+	}
 
-					boolean isProcessingInstruction = in[end] == '?';
+	private void closeElement() {
+		if( tree.isEmpty() ) {
+			return;
+		}
+		int start = 0;
+		int end = tokenLength;
+		while( start < end && isWhitespace( token[start] ) ) {
+			start++;
+		}
+		while( end > start && isWhitespace( token[end - 1] ) ) {
+			end--;
+		}
+		int colon = indexOfColon( start, end );
+		int top = tree.size() - 1;
+		XMLElement element = tree.get( top );
+		if( !matches( element.name, token, colon + 1, end - colon - 1 ) ) {
+			// Mismatched end tags are ignored.
+			return;
+		}
+		tree.remove( top );
+		scopes.remove( top );
+		if( top == materialized || isTopLevel() ) {
+			// Trim each stanza once, as a whole, when it is complete.
+			element.trimToSize();
+		}
+		if( listener != null ) {
+			listener.onEndTag( element );
+		}
+		if( top == materialized ) {
+			materialized = -1;
+		}
+		if( element == root ) {
+			root = null;
+		} else if( listener == null && isTopLevel() ) {
+			parsed.add( element );
+		}
+	}
 
-					if( isProcessingInstruction ) {
+	private void completeDeclaration() {
+		String declaration = token();
+		if( declaration.startsWith( COMMENT ) ) {
+			if( declaration.length() < 2 * COMMENT.length() || !declaration.endsWith( COMMENT ) ) {
+				append( (byte) '>' );
+				return;
+			}
+		} else if( declaration.startsWith( CDATA ) ) {
+			if( !declaration.endsWith( CDATA_END ) ) {
+				append( (byte) '>' );
+				return;
+			}
+			XMLElement parent = tree.isEmpty() ? null : tree.get( tree.size() - 1 );
+			if( parent != null && parent != root ) {
+				addText( parent, declaration.substring( CDATA.length(), declaration.length() - CDATA_END.length() ) );
+			}
+		}
+		tokenLength = 0;
+		state = State.TEXT;
+	}
 
-						int skipped = 0;
+	/**
+	 * Finishes the start tag that has just been read.
+	 *
+	 * @param empty
+	 *            {@code true} if the tag was self-closing.
+	 */
+	private void completeStartTag( boolean empty ) {
+
+		XMLElement element = pending;
+		Map<String, String> scope = pendingScope;
+		pending = null;
+		pendingScope = null;
+
+		if( element.prefix != null ) {
+			String namespace = scope != null ? scope.get( element.prefix ) : null;
+			if( namespace == null ) {
+				namespace = resolve( element.prefix );
+			}
+			if( namespace != null ) {
+				element.attributes.put( XMLElement.ATTRIBUTE_NAMESPACE, namespace );
+			}
+		}
 
-						do {
-							skipped++;
-						} while( in[end + skipped] != '?' );
+		if( empty && isTopLevel() ) {
+			element.trimToSize();
+		}
 
-						i += skipped + 2;
+		if( stream && ( tree.isEmpty() || root != null && sameName( element, root ) ) ) {
+			// A new root starts, or restarts, the stream, abandoning anything
+			// left open in the old one.
+			tree.clear();
+			scopes.clear();
+			root = null;
+			materialized = -1;
+			if( !empty ) {
+				root = element;
+				tree.add( element );
+				scopes.add( scope );
+			}
+			if( listener != null ) {
+				listener.onStartTag( element );
+				if( empty ) {
+					listener.onEndTag( element );
+				}
+			} else {
+				parsed.add( element );
+			}
+			return;
+		}
 
-						break;
+		XMLElement parent = tree.isEmpty() ? null : tree.get( tree.size() - 1 );
 
-					}
+		if( isBuilding( parent ) ) {
+			parent.children.add( element );
+		}
 
-					boolean starting = in[start + 1] != '/';
+		if( listener != null ) {
+			materializeRequested = false;
+			listener.onStartTag( element );
+			if( empty ) {
+				listener.onEndTag( element );
+			} else if( materializeRequested && materialized < 0 ) {
+				materialized = tree.size();
+			}
+			materializeRequested = false;
+		} else if( empty && isTopLevel() ) {
+			parsed.add( element );
+		}
 
-					if( !starting ) {
-						start++;
-						state = State.END_ELEMENT;
-					} else {
-						state = State.START_ELEMENT;
-						prefix = null;
-					}
+		if( !empty ) {
+			tree.add( element );
+			scopes.add( scope );
+		}
 
-					start++;
-					end = start + 1;
-					while( end < offset + length && in[end] != ' ' && in[end] != '/' && in[end] != '>' ) {
-						if( in[end] == ':' ) {
-							prefix = new String( in, start, end - start );
-							start = end + 1;
-						}
-						end++;
-					}
+	}
 
-					String name = new String( in, start, end - start );
+	private void completeText() {
+		if( tokenLength == 0 ) {
+			return;
+		}
+		XMLElement parent = tree.isEmpty() ? null : tree.get( tree.size() - 1 );
+		if( parent != null && parent != root ) {
+			for( int i = 0; i < tokenLength; i++ ) {
+				if( !isWhitespace( token[i] ) ) {
+					addText( parent, token() );
+					break;
+				}
+			}
+		}
+		tokenLength = 0;
+	}
 
-					i = end - 1;
+	/**
+	 * Parses the given bytes, carrying over whatever they leave incomplete to
+	 * the next call.
+	 *
+	 * @return every top-level element completed by the given bytes, in order.
+	 */
+	public List<XMLElement> feed( byte [] in ) {
+		return feed( in, 0, in.length );
+	}
 
-					XMLElement parent = tree.isEmpty() ? null : tree.peek();
+	/**
+	 * Parses the given bytes, carrying over whatever they leave incomplete to
+	 * the next call.
+	 *
+	 * @return every top-level element completed by the given bytes, in order.
+	 */
+	public List<XMLElement> feed( byte [] in, int offset, int length ) {
+		parsed = new ArrayList<XMLElement>();
+		scan( in, offset, length );
+		List<XMLElement> result = parsed;
+		parsed = null;
+		return result;
+	}
 
-					if( starting ) {
-						XMLElement prototype = new XMLElement( parent, prefix, name );
-						if( prefix != null && namespaces.containsKey( prefix ) ) {
-							prototype.attributes.put( XMLElement.ATTRIBUTE_NAMESPACE, namespaces.get( prefix ) );
-						}
-						if( parent != null ) {
-							parent.children.add( prototype );
-						}
-						tree.push( prototype );
-					} else {
-						if( parent != null && parent.name.equals( name ) ) {
-							tree.pop();
-							if( tree.isEmpty() ) {
-								root.add( parent );
-							}
-						}
-					}
+	/**
+	 * Parses the given bytes, carrying over whatever they leave incomplete to
+	 * the next call, and reports what they contain to the given listener
+	 * instead of returning it.
+	 */
+	public void feed( byte [] in, int offset, int length, XMLStreamListener listener ) {
+		this.listener = listener;
+		try {
+			scan( in, offset, length );
+		} finally {
+			this.listener = null;
+		}
+	}
 
-					break;
+	/**
+	 * Parses the remaining bytes of the given buffer in place, carrying over
+	 * whatever they leave incomplete to the next call. The buffer's position
+	 * is moved to its limit.
+	 *
+	 * @return every top-level element completed by the given bytes, in order.
+	 */
+	public List<XMLElement> feed( ByteBuffer in ) {
+		parsed = new ArrayList<XMLElement>();
+		scan( in );
+		List<XMLElement> result = parsed;
+		parsed = null;
+		return result;
+	}
 
-				case '>':
+	/**
+	 * Parses the remaining bytes of the given buffer in place, carrying over
+	 * whatever they leave incomplete to the next call, and reports what they
+	 * contain to the given listener instead of returning it. The buffer's
+	 * position is moved to its limit.
+	 */
+	public void feed( ByteBuffer in, XMLStreamListener listener ) {
+		this.listener = listener;
+		try {
+			scan( in );
+		} finally {
+			this.listener = null;
+		}
+	}
 
-					if( state != State.END_ELEMENT ) {
-						state = State.ELEMENT_CONTENT;
-					}
+	/**
+	 * @return the index of the first colon in the given part of the current
+	 *         token, or {@code start - 1} if there is none.
+	 */
+	private int indexOfColon( int start, int end ) {
+		for( int i = start; i < end; i++ ) {
+			if( token[i] == ':' ) {
+				return i;
+			}
+		}
+		return start - 1;
+	}
 
-					break;
+	/**
+	 * @return {@code true} if children of the given element are to be added
+	 *         to it: always in a tree, or inside a materialized subtree when
+	 *         reporting to a listener.
+	 */
+	private boolean isBuilding( XMLElement parent ) {
+		if( parent == null || parent == root ) {
+			return false;
+		}
+		return listener == null || materialized >= 0;
+	}
 
-				case '/':
+	/**
+	 * @return {@code true} if an element closed now would be a top-level one.
+	 */
+	private boolean isTopLevel() {
+		return tree.isEmpty() || tree.size() == 1 && tree.get( 0 ) == root;
+	}
 
-					state = State.END_ELEMENT;
-					i++;
-					XMLElement top = tree.pop();
-					if( tree.isEmpty() ) {
-						root.add( top );
-					}
+	/**
+	 * Asks for the element whose start tag is being reported to an
+	 * {@link XMLStreamListener} to be built in full, with every element and
+	 * text inside it added to its children, by the time its end tag is
+	 * reported. This only has an effect when called from
+	 * {@link XMLStreamListener#onStartTag(XMLElement)}, and not for the root of
+	 * a stream. A request made inside a subtree that is already being
+	 * materialized changes nothing.
+	 */
+	public void materialize() {
+		materializeRequested = true;
+	}
 
-					break;
+	private void next( byte b ) {
+
+		switch( state ) {
+
+			case TEXT:
+				if( b == '<' ) {
+					completeText();
+					state = State.TAG;
+				} else if( !tree.isEmpty() && tree.get( tree.size() - 1 ) != root ) {
+					append( b );
+				}
+				break;
+
+			case TAG:
+				if( b == '/' ) {
+					state = State.END_TAG_NAME;
+				} else if( b == '?' ) {
+					state = State.PROCESSING_INSTRUCTION;
+				} else if( b == '!' ) {
+					state = State.DECLARATION;
+				} else if( !isWhitespace( b ) ) {
+					append( b );
+					state = State.START_TAG_NAME;
+				}
+				break;
+
+			case START_TAG_NAME:
+				if( isWhitespace( b ) || b == '/' || b == '>' ) {
+					openElement();
+					tokenLength = 0;
+					state = State.IN_TAG;
+					next( b );
+				} else {
+					append( b );
+				}
+				break;
+
+			case IN_TAG:
+				if( b == '/' ) {
+					state = State.EMPTY_TAG;
+				} else if( b == '>' ) {
+					completeStartTag( false );
+					state = State.TEXT;
+				} else if( !isWhitespace( b ) ) {
+					append( b );
+					state = State.ATTRIBUTE_NAME;
+				}
+				break;
+
+			case ATTRIBUTE_NAME:
+				if( b == '=' ) {
+					attributeName = symbol( 0, tokenLength );
+					tokenLength = 0;
+					state = State.BEFORE_ATTRIBUTE_VALUE;
+				} else if( isWhitespace( b ) ) {
+					attributeName = symbol( 0, tokenLength );
+					tokenLength = 0;
+					state = State.AFTER_ATTRIBUTE_NAME;
+				} else if( b == '/' || b == '>' ) {
+					// An attribute without a value is ignored.
+					tokenLength = 0;
+					state = State.IN_TAG;
+					next( b );
+				} else {
+					append( b );
+				}
+				break;
+
+			case AFTER_ATTRIBUTE_NAME:
+				if( b == '=' ) {
+					state = State.BEFORE_ATTRIBUTE_VALUE;
+				} else if( !isWhitespace( b ) ) {
+					state = State.IN_TAG;
+					next( b );
+				}
+				break;
+
+			case BEFORE_ATTRIBUTE_VALUE:
+				if( b == '"' || b == '\'' ) {
+					quote = b;
+					state = State.ATTRIBUTE_VALUE;
+				} else if( b == '/' || b == '>' ) {
+					state = State.IN_TAG;
+					next( b );
+				}
+				break;
+
+			case ATTRIBUTE_VALUE:
+				if( b == quote ) {
+					setAttribute( attributeName, symbol( 0, tokenLength ) );
+					tokenLength = 0;
+					attributeName = null;
+					state = State.IN_TAG;
+				} else {
+					append( b );
+				}
+				break;
+
+			case EMPTY_TAG:
+				if( b == '>' ) {
+					completeStartTag( true );
+					state = State.TEXT;
+				} else if( !isWhitespace( b ) ) {
+					state = State.IN_TAG;
+					next( b );
+				}
+				break;
+
+			case END_TAG_NAME:
+				if( b == '>' ) {
+					closeElement();
+					tokenLength = 0;
+					state = State.TEXT;
+				} else {
+					append( b );
+				}
+				break;
+
+			case PROCESSING_INSTRUCTION:
+				if( b == '>' && previous == '?' ) {
+					state = State.TEXT;
+				}
+				break;
+
+			case DECLARATION:
+				if( b == '>' ) {
+					completeDeclaration();
+				} else {
+					append( b );
+				}
+				break;
 
-				case ' ':
-
-					if( state != State.START_ELEMENT ) {
-						break;
-					}
-					while( start < offset + length && in[start] == ' ' ) {
-						start++;
-					}
-					if( in[start] == '>' || in[start] == '/' ) {
-						break;
-					}
-					end = start + 1;
-					while( end < offset + length && in[end] != '=' ) {
-						end++;
-					}
-					String attributeName = new String( in, start, end - start );
-					start = end + 2;
-					end = start + 1;
-					while( end < offset + length && in[end] != '"' && in[end] != '\'' ) {
-						end++;
-					}
-					String attributeValue = new String( in, start, end - start );
-					i = end;
-
-					if( !tree.isEmpty() ) {
-
-						XMLElement x = tree.peek();
-
-						if( !XMLElement.ATTRIBUTE_NAMESPACE.equals( attributeName ) ) {
-							x.attributes.put( attributeName, attributeValue );
-						} else {
-							// if( prefix == null ) {
-							x.attributes.put( attributeName, attributeValue );
-							// }
-						}
-
-						int attributePrefixIndex = attributeName.indexOf( ':' );
-
-						if( attributePrefixIndex > -1 && prefix != null ) {
-							String namespace = attributeName.substring( attributePrefixIndex + 1 );
-							if( namespace.equals( prefix ) ) {
-								namespaces.put( namespace, attributeValue );
-								x.attributes.put( XMLElement.ATTRIBUTE_NAMESPACE, attributeValue );
-							}
-						}
-
-					}
+		}
 
-					break;
+		previous = b;
+
+	}
 
-				default:
+	private void openElement() {
+		int colon = indexOfColon( 0, tokenLength );
+		String prefix = colon > -1 ? symbol( 0, colon ) : null;
+		String name = symbol( colon + 1, tokenLength - colon - 1 );
+		XMLElement parent = tree.isEmpty() ? null : tree.get( tree.size() - 1 );
+		pending = new XMLElement( parent == root ? null : parent, prefix, name );
+		pendingScope = null;
+	}
 
-					while( end < offset + length && in[end] != '<' ) {
-						end++;
-					}
-					i = end - 1;
-					String text = new String( in, start, end - start );
-					if( !tree.isEmpty() ) {
-						tree.peek().children.add( new XMLText( tree.peek(), text ) );
-					}
+	/**
+	 * Parses the given bytes as a complete sequence of XML documents. Unlike
+	 * {@link #feed(byte[], int, int)}, this does not affect this parser's
+	 * state, and an element left open by the given bytes is returned anyway,
+	 * along with what it contains so far.
+	 */
+	public List<XMLElement> parse( byte [] in ) {
+		return parse( in, 0, in.length );
+	}
 
-					break;
+	/**
+	 * Parses the given bytes as a complete sequence of XML documents. Unlike
+	 * {@link #feed(byte[], int, int)}, this does not affect this parser's
+	 * state, and an element left open by the given bytes is returned anyway,
+	 * along with what it contains so far.
+	 */
+	public List<XMLElement> parse( byte [] in, int offset, int length ) {
+		XMLElementParser parser = new XMLElementParser( stream, symbols );
+		List<XMLElement> elements = parser.feed( in, offset, length );
+		if( !parser.tree.isEmpty() && parser.tree.get( 0 ) != parser.root ) {
+			elements.add( parser.tree.get( 0 ) );
+		}
+		return elements;
+	}
 
+	/**
+	 * Parses the remaining bytes of the given buffer as a complete sequence of
+	 * XML documents, as {@link #parse(byte[], int, int)} does. The buffer's
+	 * position is moved to its limit.
+	 */
+	public List<XMLElement> parse( ByteBuffer in ) {
+		XMLElementParser parser = new XMLElementParser( stream, symbols );
+		List<XMLElement> elements = parser.feed( in );
+		if( !parser.tree.isEmpty() && parser.tree.get( 0 ) != parser.root ) {
+			elements.add( parser.tree.get( 0 ) );
+		}
+		return elements;
+	}
+
+	public List<XMLElement> parse( String in ) {
+		return parse( in.getBytes( UTF8 ) );
+	}
+
+	/**
+	 * Discards everything this parser has read so far, so that it may start
+	 * on a new stream.
+	 */
+	public void reset() {
+		tree.clear();
+		scopes.clear();
+		state = State.TEXT;
+		tokenLength = 0;
+		previous = 0;
+		attributeName = null;
+		pending = null;
+		pendingScope = null;
+		root = null;
+		materialized = -1;
+		materializeRequested = false;
+	}
+
+	/**
+	 * @return the namespace bound to the given prefix by the innermost open
+	 *         element that declares it, or {@code null} if none does.
+	 */
+	private String resolve( String prefix ) {
+		for( int i = scopes.size() - 1; i >= 0; i-- ) {
+			Map<String, String> scope = scopes.get( i );
+			if( scope != null && scope.containsKey( prefix ) ) {
+				return scope.get( prefix );
 			}
+		}
+		return null;
+	}
 
+	private void scan( byte [] in, int offset, int length ) {
+		for( int i = offset, end = offset + length; i < end; i++ ) {
+			next( in[i] );
 		}
+	}
 
-		XMLElement top = null;
-		while( !tree.isEmpty() ) {
-			top = tree.pop();
+	private void scan( ByteBuffer in ) {
+		if( in.hasArray() ) {
+			scan( in.array(), in.arrayOffset() + in.position(), in.remaining() );
+		} else {
+			for( int i = in.position(), end = in.limit(); i < end; i++ ) {
+				next( in.get( i ) );
+			}
 		}
-		if( top != null ) {
-			root.add( top );
+		in.position( in.limit() );
+	}
+
+	private void setAttribute( String name, String value ) {
+		pending.attributes.put( name, value );
+		if( name.startsWith( NAMESPACE_DECLARATION_PREFIX ) ) {
+			if( pendingScope == null ) {
+				pendingScope = new HashMap<String, String>();
+			}
+			pendingScope.put( name.substring( NAMESPACE_DECLARATION_PREFIX.length() ), value );
 		}
+	}
 
-		return root;
+	/**
+	 * @return the canonical instance of the given part of the current token,
+	 *         if it is in this parser's symbol table, or the part decoded as
+	 *         {@link #token(int, int)} does otherwise.
+	 */
+	private String symbol( int offset, int length ) {
+		String symbol = symbols.lookup( token, offset, length );
+		return symbol != null ? symbol : token( offset, length );
+	}
 
+	private String token() {
+		return token( 0, tokenLength );
 	}
 
-	public List<XMLElement> parse( String in ) {
-		return parse( in.getBytes() );
+	/**
+	 * @return the given part of the current token, copied straight into
+	 *         characters if it is pure ASCII, or decoded as UTF-8 otherwise.
+	 */
+	private String token( int offset, int length ) {
+		if( chars.length < length ) {
+			chars = new char [token.length];
+		}
+		for( int i = 0; i < length; i++ ) {
+			byte b = token[offset + i];
+			if( b < 0 ) {
+				return new String( token, offset, length, UTF8 );
+			}
+			chars[i] = (char) b;
+		}
+		return new String( chars, 0, length );
 	}
 
 }
@@ -0,0 +1,166 @@
+package org.twuni.xmppt.xml;
+
+import java.nio.charset.Charset;
+
+/**
+ * A symbol table maps the encoded bytes of well-known names and namespaces to
+ * one canonical {@link String} each, so that an {@link XMLElementParser} can
+ * look them up straight from the bytes it has read instead of decoding a new
+ * string every time. Since the symbols defined are usually the same constants
+ * that packets are matched against, {@link String#equals(Object)} on them
+ * returns as soon as it finds that both sides are the same instance.
+ * <p>
+ * The table only ever holds the symbols {@link #define(String...) defined} in
+ * it, up to a fixed limit, so it cannot be grown by what a peer sends. Lookups
+ * are lock-free. Defining symbols replaces the table with a larger copy, and
+ * is meant to happen rarely, such as once at startup.
+ * </p>
+ */
+public class XMLSymbols {
+
+	private static class Table {
+
+		final byte [][] keys;
+		final String [] values;
+		final int size;
+		final int maxLength;
+
+		Table( int capacity, int size, int maxLength ) {
+			keys = new byte [capacity] [];
+			values = new String [capacity];
+			this.size = size;
+			this.maxLength = maxLength;
+		}
+
+	}
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	private static final int MAX_SYMBOLS = 1024;
+	private static final XMLSymbols DEFAULT = new XMLSymbols( XMLElement.ATTRIBUTE_NAMESPACE, "xml:lang" );
+
+	private static boolean contains( String [] symbols, int count, String symbol ) {
+		for( int i = 0; i < count; i++ ) {
+			if( symbols[i].equals( symbol ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the symbol table shared by every parser that is not given one of
+	 *         its own.
+	 */
+	public static XMLSymbols getDefault() {
+		return DEFAULT;
+	}
+
+	private static int hash( byte [] in, int offset, int length ) {
+		int hash = 0;
+		for( int i = offset, end = offset + length; i < end; i++ ) {
+			hash = 31 * hash + in[i];
+		}
+		return hash ^ hash >>> 16;
+	}
+
+	private static String lookup( Table table, byte [] in, int offset, int length ) {
+		if( length > table.maxLength ) {
+			return null;
+		}
+		int mask = table.keys.length - 1;
+		for( int index = hash( in, offset, length ) & mask;; index = ( index + 1 ) & mask ) {
+			byte [] key = table.keys[index];
+			if( key == null ) {
+				return null;
+			}
+			if( matches( key, in, offset, length ) ) {
+				return table.values[index];
+			}
+		}
+	}
+
+	private static boolean matches( byte [] key, byte [] in, int offset, int length ) {
+		if( key.length != length ) {
+			return false;
+		}
+		for( int i = 0; i < length; i++ ) {
+			if( key[i] != in[offset + i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void put( Table table, byte [] key, String value ) {
+		int mask = table.keys.length - 1;
+		int index = hash( key, 0, key.length ) & mask;
+		while( table.keys[index] != null ) {
+			index = ( index + 1 ) & mask;
+		}
+		table.keys[index] = key;
+		table.values[index] = value;
+	}
+
+	private volatile Table table = new Table( 1, 0, 0 );
+
+	public XMLSymbols( String... symbols ) {
+		define( symbols );
+	}
+
+	/**
+	 * Adds the given symbols to this table. Symbols already defined keep their
+	 * canonical instance, and symbols beyond the table's limit are ignored.
+	 */
+	public synchronized void define( String... symbols ) {
+
+		Table current = table;
+		String [] added = new String [symbols.length];
+		int count = 0;
+		int maxLength = current.maxLength;
+
+		for( String symbol : symbols ) {
+			if( symbol == null || current.size + count >= MAX_SYMBOLS || contains( added, count, symbol ) ) {
+				continue;
+			}
+			byte [] key = symbol.getBytes( UTF8 );
+			if( lookup( current, key, 0, key.length ) == null ) {
+				added[count++] = symbol;
+				maxLength = Math.max( maxLength, key.length );
+			}
+		}
+
+		if( count == 0 ) {
+			return;
+		}
+
+		int size = current.size + count;
+		int capacity = Integer.highestOneBit( size * 2 ) << 1;
+		Table grown = new Table( capacity, size, maxLength );
+
+		for( int i = 0; i < current.keys.length; i++ ) {
+			if( current.keys[i] != null ) {
+				put( grown, current.keys[i], current.values[i] );
+			}
+		}
+
+		for( int i = 0; i < count; i++ ) {
+			put( grown, added[i].getBytes( UTF8 ), added[i] );
+		}
+
+		table = grown;
+
+	}
+
+	/**
+	 * @return the canonical instance of the symbol encoded by the given bytes,
+	 *         or {@code null} if no such symbol is defined.
+	 */
+	public String lookup( byte [] in, int offset, int length ) {
+		return lookup( table, in, offset, length );
+	}
+
+	public int size() {
+		return table.size;
+	}
+
+}
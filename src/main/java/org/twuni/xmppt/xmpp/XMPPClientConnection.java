@@ -10,6 +10,8 @@ import java.io.OutputStream;
 import java.util.Stack;
 
 import org.twuni.Logger;
+import org.twuni.nio.server.EncodedPacket;
+import org.twuni.nio.server.Queue;
 import org.twuni.xmppt.client.SocketFactory;
 import org.twuni.xmppt.xmpp.bind.Bind;
 import org.twuni.xmppt.xmpp.core.Features;
@@ -313,6 +315,7 @@ public class XMPPClientConnection {
 	private AcknowledgmentListener acknowledgmentListener;
 	private ConnectionListener connectionListener;
 	private boolean streamManagementRequested = true;
+	private Queue unacknowledged = new Queue( null );
 
 	public void bind( String resourceName ) throws IOException {
 		bind( resourceName, 0 );
@@ -483,6 +486,8 @@ public class XMPPClientConnection {
 			context.received = 0;
 			context.sent = 0;
 
+			unacknowledged = new Queue( context.fullJID );
+
 		}
 
 	}
@@ -492,6 +497,15 @@ public class XMPPClientConnection {
 		return context != null ? context.nextID() : Long.toHexString( System.currentTimeMillis() );
 	}
 
+	/**
+	 * @return the stanzas sent since stream management was enabled which the
+	 *         server has not yet acknowledged, numbered by the {@code h} value
+	 *         that acknowledges each of them.
+	 */
+	public Queue getUnacknowledgedPackets() {
+		return unacknowledged;
+	}
+
 	private Context getContext() {
 		return contexts.isEmpty() ? null : contexts.peek();
 	}
@@ -633,6 +647,7 @@ public class XMPPClientConnection {
 				send( new Acknowledgment( getContext().received ) );
 			} else if( packet instanceof Acknowledgment ) {
 				Acknowledgment ack = (Acknowledgment) packet;
+				unacknowledged.acknowledge( ack.getH() );
 				if( getContext().sent != ack.getH() ) {
 					dispatchFailedAcknowledgment( getContext().sent, ack.getH() );
 				} else {
@@ -706,6 +721,8 @@ public class XMPPClientConnection {
 
 				dispatchOnConnected();
 
+				unacknowledged.acknowledge( resumed.getH() );
+
 				if( context.sent != resumed.getH() ) {
 					dispatchFailedAcknowledgment( context.sent, resumed.getH() );
 				} else {
@@ -740,11 +757,13 @@ public class XMPPClientConnection {
 
 	public void send( Object... packets ) throws IOException {
 		for( Object packet : packets ) {
-			socket.write( packet );
-			if( isStreamManagementEnabled() ) {
-				if( !StreamManagement.is( packet ) ) {
-					getContext().sent++;
-				}
+			if( isStreamManagementEnabled() && !StreamManagement.is( packet ) ) {
+				EncodedPacket encoded = EncodedPacket.encode( packet );
+				socket.write( encoded );
+				getContext().sent++;
+				unacknowledged.add( encoded );
+			} else {
+				socket.write( packet );
 			}
 		}
 	}
@@ -6,18 +6,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.twuni.Logger;
+import org.twuni.nio.server.EncodedPacket;
 import org.twuni.nio.server.Writable;
 import org.twuni.xmppt.client.SocketFactory;
 import org.twuni.xmppt.xml.XMLElement;
 import org.twuni.xmppt.xml.XMLElementParser;
-import org.twuni.xmppt.xml.XMLEntity;
 import org.twuni.xmppt.xmpp.core.XMPPPacketConfiguration;
-import org.twuni.xmppt.xmpp.stream.Stream;
 
 public class XMPPSocket implements Closeable, Flushable, Writable {
 
@@ -38,12 +35,12 @@ public class XMPPSocket implements Closeable, Flushable, Writable {
 
 	public static final int DEFAULT_INPUT_BUFFER_SIZE = 32 * 1024;
 
-	private static final XMLElementParser XML = new XMLElementParser();
 	private static final PacketTransformer TRANSFORMER = XMPPPacketConfiguration.getDefault();
 
 	private final Object guard = new Object();
 	private final Socket socket;
 	private final byte [] inputBuffer;
+	private final XMLElementParser parser = new XMLElementParser( true );
 
 	private Logger log;
 	private Node head;
@@ -109,44 +106,23 @@ public class XMPPSocket implements Closeable, Flushable, Writable {
 
 		InputStream in = socket.getInputStream();
 
-		byte [] buffer = inputBuffer;
+		List<XMLElement> elements;
 
-		int size = in.read( buffer, 0, buffer.length );
+		do {
 
-		if( size <= 0 ) {
-			return;
-		}
+			int size = in.read( inputBuffer, 0, inputBuffer.length );
 
-		while( buffer[size - 1] != '>' ) {
-			if( size >= buffer.length ) {
-				buffer = Arrays.copyOf( buffer, buffer.length * 2 );
-				if( log != null ) {
-					log.debug( "BUFR(%d)", Integer.valueOf( buffer.length ) );
-				}
+			if( size <= 0 ) {
+				return;
 			}
-			size += in.read( buffer, size, buffer.length - size );
-		}
-
-		if( log != null ) {
-			log.info( "RECV %s", new String( buffer, 0, size ) );
-		}
 
-		List<XMLElement> elements = XML.parse( buffer, 0, size );
-		List<XMLElement> expanded = new ArrayList<XMLElement>();
-
-		for( int i = 0; i < elements.size(); i++ ) {
-			XMLElement element = elements.get( i );
-			expanded.add( element );
-			if( Stream.ELEMENT_NAME.equals( element.name ) ) {
-				for( XMLEntity child : element.children ) {
-					if( child instanceof XMLElement ) {
-						expanded.add( (XMLElement) child );
-					}
-				}
+			if( log != null ) {
+				log.info( "RECV %s", new String( inputBuffer, 0, size ) );
 			}
-		}
 
-		elements = expanded;
+			elements = parser.feed( inputBuffer, 0, size );
+
+		} while( elements.isEmpty() );
 
 		synchronized( guard ) {
 
@@ -260,11 +236,10 @@ public class XMPPSocket implements Closeable, Flushable, Writable {
 
 	public void write( Object packet ) throws IOException {
 		OutputStream out = socket.getOutputStream();
-		String packetString = packet.toString();
 		if( log != null ) {
-			log.info( "SEND %s", packetString );
+			log.info( "SEND %s", packet );
 		}
-		byte [] buffer = packetString.getBytes();
+		byte [] buffer = packet instanceof EncodedPacket ? ( (EncodedPacket) packet ).getBytes() : packet.toString().getBytes();
 		out.write( buffer, 0, buffer.length );
 	}
 
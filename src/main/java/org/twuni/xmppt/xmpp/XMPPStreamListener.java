@@ -5,14 +5,23 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.twuni.xmppt.xml.XMLElement;
+import org.twuni.xmppt.xml.XMLElementParser;
 import org.twuni.xmppt.xml.XMLStreamListener;
 import org.twuni.xmppt.xml.XMLText;
 import org.twuni.xmppt.xmpp.stream.Stream;
 
+/**
+ * An XMPP stream listener turns the events of an {@link XMLElementParser} into
+ * packets. Only stanzas, the children of the stream, are built in full; the
+ * parser reports everything else without building a tree.
+ */
 public class XMPPStreamListener implements XMLStreamListener {
 
 	private PacketListener packetListener;
 	private final List<PacketTransformer> packetTransformers = new ArrayList<PacketTransformer>();
+	private final XMLElementParser parser = new XMLElementParser( true );
+	private boolean streaming;
+	private int depth;
 
 	public XMPPStreamListener( PacketListener packetListener, PacketTransformer... packetTransformers ) {
 		this.packetListener = packetListener;
@@ -27,11 +36,35 @@ public class XMPPStreamListener implements XMLStreamListener {
 		packetTransformers.add( packetTransformer );
 	}
 
+	/**
+	 * Parses the given bytes read from the stream, passing on each packet
+	 * they complete to this listener's {@link PacketListener}.
+	 */
+	public void feed( byte [] in, int offset, int length ) {
+		parser.feed( in, offset, length, this );
+	}
+
+	/**
+	 * @return {@code true} if an element at the current depth is a stanza.
+	 */
+	private boolean isStanza() {
+		return depth == ( streaming ? 2 : 1 );
+	}
+
 	@Override
 	public void onEndTag( XMLElement element ) {
 
 		if( Stream.is( element ) ) {
 			// Ignore this and just let the stream terminate.
+			streaming = false;
+			depth = 0;
+			return;
+		}
+
+		boolean stanza = isStanza();
+		depth--;
+
+		if( !stanza ) {
 			return;
 		}
 
@@ -57,10 +90,19 @@ public class XMPPStreamListener implements XMLStreamListener {
 	public void onStartTag( XMLElement element ) {
 
 		if( Stream.is( element ) ) {
+			// A stream header opens a new stream, even in place of a stanza.
+			streaming = true;
+			depth = 1;
 			onPacketReceived( Stream.from( element ) );
 			return;
 		}
 
+		depth++;
+
+		if( isStanza() ) {
+			parser.materialize();
+		}
+
 	}
 
 	@Override
@@ -4,14 +4,35 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.twuni.xmppt.xml.XMLElement;
+import org.twuni.xmppt.xml.XMLSymbols;
 import org.twuni.xmppt.xmpp.Extension;
 import org.twuni.xmppt.xmpp.PacketTransformer;
 import org.twuni.xmppt.xmpp.PacketTransformerGroup;
+import org.twuni.xmppt.xmpp.bind.Bind;
 import org.twuni.xmppt.xmpp.bind.BindExtension;
+import org.twuni.xmppt.xmpp.bind.JID;
+import org.twuni.xmppt.xmpp.bind.Resource;
+import org.twuni.xmppt.xmpp.capabilities.Capabilities;
 import org.twuni.xmppt.xmpp.capabilities.CapabilitiesExtension;
+import org.twuni.xmppt.xmpp.capabilities.CapabilitiesHash;
+import org.twuni.xmppt.xmpp.ping.Ping;
 import org.twuni.xmppt.xmpp.ping.PingExtension;
+import org.twuni.xmppt.xmpp.sasl.SASLAuthentication;
 import org.twuni.xmppt.xmpp.sasl.SASLExtension;
+import org.twuni.xmppt.xmpp.sasl.SASLMechanism;
+import org.twuni.xmppt.xmpp.sasl.SASLMechanisms;
+import org.twuni.xmppt.xmpp.sasl.SASLPlainAuthentication;
+import org.twuni.xmppt.xmpp.sasl.Success;
+import org.twuni.xmppt.xmpp.session.Session;
 import org.twuni.xmppt.xmpp.session.SessionExtension;
+import org.twuni.xmppt.xmpp.stream.Acknowledgment;
+import org.twuni.xmppt.xmpp.stream.AcknowledgmentRequest;
+import org.twuni.xmppt.xmpp.stream.Enable;
+import org.twuni.xmppt.xmpp.stream.Enabled;
+import org.twuni.xmppt.xmpp.stream.Resume;
+import org.twuni.xmppt.xmpp.stream.Resumed;
+import org.twuni.xmppt.xmpp.stream.Stream;
 import org.twuni.xmppt.xmpp.stream.StreamManagement;
 import org.twuni.xmppt.xmpp.stream.StreamPacketTransformer;
 
@@ -19,6 +40,35 @@ public class XMPPPacketConfiguration {
 
 	private static PacketTransformer defaultConfiguration;
 
+	static {
+
+		// Parsers return these very instances, so matching packets against them compares references.
+		XMLSymbols.getDefault().define(
+
+			Stream.ELEMENT_NAME, Stream.NAMESPACE, Stream.ROOT_NAMESPACE, Stream.ATTRIBUTE_ID, Stream.ATTRIBUTE_FROM, Stream.ATTRIBUTE_TO, Stream.ATTRIBUTE_VERSION, Stream.DEFAULT_VERSION,
+			XMLElement.ATTRIBUTE_NAMESPACE + ":" + Stream.DEFAULT_PREFIX,
+			Features.ELEMENT_NAME, Failure.ELEMENT_NAME, Error.ELEMENT_NAME, Error.ATTRIBUTE_CODE, Error.TYPE_CANCEL,
+
+			Message.ELEMENT_NAME, Message.TYPE_CHAT, Message.TYPE_ERROR,
+			IQ.ELEMENT_NAME, IQ.TYPE_GET, IQ.TYPE_SET, IQ.TYPE_RESULT, IQ.ATTRIBUTE_TYPE,
+			Presence.ELEMENT_NAME, Time.ELEMENT_NAME, Time.NAMESPACE, Time.ATTRIBUTE_STAMP,
+
+			SASLAuthentication.ELEMENT_NAME, SASLAuthentication.NAMESPACE, SASLAuthentication.ATTRIBUTE_MECHANISM,
+			SASLMechanisms.ELEMENT_NAME, SASLMechanism.ELEMENT_NAME, SASLPlainAuthentication.MECHANISM, Success.ELEMENT_NAME,
+			Bind.ELEMENT_NAME, Bind.NAMESPACE, Resource.ELEMENT_NAME, JID.ELEMENT_NAME,
+			Session.ELEMENT_NAME, Session.NAMESPACE,
+			Ping.ELEMENT_NAME, Ping.NAMESPACE,
+			Capabilities.ELEMENT_NAME, Capabilities.NAMESPACE, CapabilitiesHash.ELEMENT_NAME, CapabilitiesHash.NAMESPACE,
+
+			StreamManagement.ELEMENT_NAME, StreamManagement.NAMESPACE,
+			Enable.ELEMENT_NAME, Enabled.ELEMENT_NAME, Enabled.ATTRIBUTE_RESUME, Enabled.ATTRIBUTE_MAX,
+			Resume.ELEMENT_NAME, Resumed.ELEMENT_NAME, Resume.ATTRIBUTE_H, Resume.ATTRIBUTE_PREVIOUS_ID,
+			Acknowledgment.ELEMENT_NAME, AcknowledgmentRequest.ELEMENT_NAME
+
+		);
+
+	}
+
 	public static PacketTransformer getDefault() {
 
 		if( defaultConfiguration == null ) {
@@ -0,0 +1,147 @@
+package org.twuni.nio.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AcceptorTest extends Assert {
+
+	private static final long WAIT = 5000;
+
+	private static InetSocketAddress freeAddress() throws IOException {
+		InetAddress host = InetAddress.getByName( "127.0.0.1" );
+		ServerSocket socket = new ServerSocket( 0, 1, host );
+		try {
+			return new InetSocketAddress( host, socket.getLocalPort() );
+		} finally {
+			socket.close();
+		}
+	}
+
+	private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private final ConnectionFactory connectionFactory = new ConnectionFactory() {
+
+		@Override
+		public Connection createConnection( SocketChannel channel, Dispatcher dispatcher, EventHandler eventHandler ) {
+			Connection connection = new Connection( channel, dispatcher, eventHandler ) {
+
+				@Override
+				public Object state() {
+					return null;
+				}
+
+			};
+			connections.add( connection );
+			return connection;
+		}
+
+	};
+
+	private InetSocketAddress address;
+	private EventHandler eventHandler;
+	private Acceptor acceptor;
+
+	private void awaitConnectionCount( int count ) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT;
+		while( acceptor.getConnectionCount() != count && System.currentTimeMillis() < deadline ) {
+			Thread.sleep( 10 );
+		}
+		assertEquals( count, acceptor.getConnectionCount() );
+	}
+
+	private Socket connect() throws IOException {
+		Socket client = new Socket( address.getAddress(), address.getPort() );
+		clients.add( client );
+		return client;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		address = freeAddress();
+		eventHandler = new EventHandler();
+	}
+
+	private void start( DispatcherProvider dispatcherProvider ) throws IOException {
+		acceptor = new Acceptor( address, dispatcherProvider, eventHandler, connectionFactory );
+		Thread thread = new Thread( acceptor, "AcceptorTest" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if( acceptor != null ) {
+			acceptor.close();
+		}
+		for( Socket client : clients ) {
+			client.close();
+		}
+		for( Connection connection : connections ) {
+			connection.getClient().close();
+		}
+	}
+
+	@Test
+	public void run_shouldCloseClientsWhenNoDispatcherIsAvailable() throws IOException, InterruptedException {
+
+		start( new DispatcherProvider() {
+
+			@Override
+			public Dispatcher provideDispatcher() {
+				return null;
+			}
+
+		} );
+
+		for( int i = 0; i < 2; i++ ) {
+			Socket client = connect();
+			client.setSoTimeout( (int) WAIT );
+			assertEquals( -1, client.getInputStream().read() );
+		}
+		assertTrue( connections.isEmpty() );
+
+	}
+
+	@Test
+	public void run_shouldStopAcceptingAtMaximumConnections() throws IOException, InterruptedException {
+
+		// The dispatcher is never started, so connections stay registered
+		// with it until they are unregistered by hand.
+		final Dispatcher dispatcher = new Dispatcher( eventHandler );
+
+		start( new DispatcherProvider() {
+
+			@Override
+			public Dispatcher provideDispatcher() {
+				return dispatcher;
+			}
+
+		} );
+		acceptor.setMaximumConnections( 2 );
+
+		for( int i = 0; i < 3; i++ ) {
+			connect();
+		}
+		awaitConnectionCount( 2 );
+		Thread.sleep( 300 );
+		assertEquals( 2, acceptor.getConnectionCount() );
+		assertEquals( 2, connections.size() );
+
+		dispatcher.unregister( connections.get( 0 ) );
+		awaitConnectionCount( 2 );
+		assertEquals( 3, connections.size() );
+
+	}
+
+}
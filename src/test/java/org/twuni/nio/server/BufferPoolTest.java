@@ -0,0 +1,88 @@
+package org.twuni.nio.server;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest extends Assert {
+
+	@Test
+	public void allocate_shouldCarveSlabsIntoBuffersOfTheSizeClass() {
+		BufferPool pool = new BufferPool( 1024, 8, 256 );
+		ByteBuffer buffer = pool.allocate( 1 );
+		assertEquals( 256, buffer.capacity() );
+		assertTrue( buffer.isDirect() );
+		assertEquals( 1, pool.getBorrowedCount() );
+		assertEquals( 3, pool.getFreeCount() );
+	}
+
+	@Test
+	public void allocate_shouldServeLargeRequestsWithUnpooledBuffers() {
+		BufferPool pool = new BufferPool( 1024, 8, 256, 1024 );
+		ByteBuffer buffer = pool.allocate( 5000 );
+		assertEquals( 5000, buffer.capacity() );
+		assertEquals( 0, pool.getFreeCount() );
+		pool.release( buffer );
+		assertEquals( 0, pool.getBorrowedCount() );
+		assertEquals( 0, pool.getFreeCount() );
+	}
+
+	@Test
+	public void allocate_shouldServeSmallestSizeClassThatFits() {
+		BufferPool pool = new BufferPool( 1024, 8, 256, 1024 );
+		assertEquals( 256, pool.allocate( 100 ).capacity() );
+		assertEquals( 256, pool.allocate( 256 ).capacity() );
+		assertEquals( 1024, pool.allocate( 257 ).capacity() );
+	}
+
+	@Test
+	public void getHighWatermark_shouldTrackMostBuffersLentOutAtOnce() {
+		BufferPool pool = new BufferPool( 256, 8, 256 );
+		ByteBuffer a = pool.allocate( 1 );
+		ByteBuffer b = pool.allocate( 1 );
+		pool.release( a );
+		pool.release( b );
+		pool.release( pool.allocate( 1 ) );
+		assertEquals( 2, pool.getHighWatermark() );
+		assertEquals( 0, pool.getBorrowedCount() );
+	}
+
+	@Test
+	public void release_shouldKeepAtMostMaximumFreeBuffersPerSizeClass() {
+		BufferPool pool = new BufferPool( 256, 2, 256 );
+		ByteBuffer [] buffers = new ByteBuffer [3];
+		for( int i = 0; i < buffers.length; i++ ) {
+			buffers[i] = pool.allocate( 1 );
+		}
+		assertEquals( 3, pool.getBorrowedCount() );
+		assertEquals( 0, pool.getFreeCount() );
+		for( ByteBuffer buffer : buffers ) {
+			pool.release( buffer );
+		}
+		assertEquals( 0, pool.getBorrowedCount() );
+		assertEquals( 2, pool.getFreeCount() );
+	}
+
+	@Test
+	public void release_shouldRecycleClearedBuffers() {
+		BufferPool pool = new BufferPool( 256, 2, 256 );
+		ByteBuffer buffer = pool.allocate( 1 );
+		buffer.put( (byte) 1 ).flip();
+		pool.release( buffer );
+		assertEquals( 1, pool.getFreeCount() );
+		ByteBuffer recycled = pool.allocate( 1 );
+		assertSame( buffer, recycled );
+		assertEquals( 0, recycled.position() );
+		assertEquals( 256, recycled.limit() );
+		assertEquals( 0, pool.getFreeCount() );
+	}
+
+	@Test
+	public void release_shouldIgnoreNull() {
+		BufferPool pool = new BufferPool();
+		pool.release( null );
+		assertEquals( 0, pool.getBorrowedCount() );
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.twuni.nio.server;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SerialExecutorTest extends Assert {
+
+	/**
+	 * Holds on to the tasks given to it until told to run them.
+	 */
+	private static class ManualExecutor implements Executor {
+
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		@Override
+		public void execute( Runnable task ) {
+			tasks.add( task );
+		}
+
+		void runNext() {
+			tasks.removeFirst().run();
+		}
+
+	}
+
+	private static class BoundedExecutor extends SerialExecutor {
+
+		int saturated;
+		int drained;
+
+		public BoundedExecutor( Executor executor, int maximumPending ) {
+			super( executor, maximumPending );
+		}
+
+		@Override
+		protected void onDrained() {
+			drained++;
+			assertEquals( saturated, drained );
+		}
+
+		@Override
+		protected void onSaturated() {
+			saturated++;
+			assertEquals( drained + 1, saturated );
+		}
+
+	}
+
+	private static final Runnable NOTHING = new Runnable() {
+
+		@Override
+		public void run() {
+			// Do nothing.
+		}
+
+	};
+
+	@Test
+	public void execute_shouldRunTasksOneAtATimeInSubmissionOrder() throws InterruptedException {
+
+		ExecutorService pool = Executors.newFixedThreadPool( 4 );
+		SerialExecutor executor = new SerialExecutor( pool );
+		final int count = 1000;
+		final List<Integer> order = new ArrayList<Integer>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch( count );
+
+		try {
+			for( int i = 0; i < count; i++ ) {
+				final Integer index = Integer.valueOf( i );
+				executor.execute( new Runnable() {
+
+					@Override
+					public void run() {
+						if( running.incrementAndGet() > 1 ) {
+							overlaps.incrementAndGet();
+						}
+						order.add( index );
+						running.decrementAndGet();
+						done.countDown();
+					}
+
+				} );
+			}
+			assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals( 0, overlaps.get() );
+		for( int i = 0; i < count; i++ ) {
+			assertEquals( i, order.get( i ).intValue() );
+		}
+
+	}
+
+	@Test
+	public void execute_shouldYieldThreadAfterEachBatch() {
+		ManualExecutor threads = new ManualExecutor();
+		SerialExecutor executor = new SerialExecutor( threads );
+		for( int i = 0; i < SerialExecutor.MAXIMUM_BATCH + 1; i++ ) {
+			executor.execute( NOTHING );
+		}
+		assertEquals( 1, threads.tasks.size() );
+		threads.runNext();
+		assertEquals( 1, executor.getPendingCount() );
+		assertEquals( 1, threads.tasks.size() );
+		threads.runNext();
+		assertEquals( 0, executor.getPendingCount() );
+		assertTrue( threads.tasks.isEmpty() );
+		assertTrue( executor.isIdle() );
+	}
+
+	@Test
+	public void onSaturated_shouldBeFollowedByOneOnDrained() {
+
+		ManualExecutor threads = new ManualExecutor();
+		BoundedExecutor executor = new BoundedExecutor( threads, 3 );
+
+		executor.execute( NOTHING );
+		executor.execute( NOTHING );
+		assertEquals( 0, executor.saturated );
+		for( int i = 0; i < 3; i++ ) {
+			executor.execute( NOTHING );
+		}
+		assertEquals( 1, executor.saturated );
+		assertEquals( 0, executor.drained );
+
+		threads.runNext();
+		assertEquals( 1, executor.drained );
+		assertEquals( 0, executor.getPendingCount() );
+
+		for( int i = 0; i < 3; i++ ) {
+			executor.execute( NOTHING );
+		}
+		assertEquals( 2, executor.saturated );
+		threads.runNext();
+		assertEquals( 2, executor.drained );
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.twuni.nio.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.twuni.nio.server.TimingWheel.Timeout;
+
+public class TimingWheelTest extends Assert {
+
+	private static class Counter implements Runnable {
+
+		final AtomicInteger runs = new AtomicInteger();
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+		}
+
+	}
+
+	private static Runnable record( final List<String> order, final String name ) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				order.add( name );
+			}
+
+		};
+	}
+
+	@Test
+	public void advance_shouldRunTasksInDeadlineOrder() {
+		TimingWheel wheel = new TimingWheel( 10, 8 );
+		List<String> order = new ArrayList<String>();
+		wheel.schedule( record( order, "c" ), 50 );
+		wheel.schedule( record( order, "a" ), 10 );
+		wheel.schedule( record( order, "b" ), 30 );
+		assertEquals( 3, wheel.advance( System.currentTimeMillis() + 1000 ) );
+		assertEquals( "[a, b, c]", order.toString() );
+		assertTrue( wheel.isEmpty() );
+	}
+
+	@Test
+	public void advance_shouldNotRunTasksEarly() {
+		TimingWheel wheel = new TimingWheel( 10, 8 );
+		Counter counter = new Counter();
+		Timeout timeout = wheel.schedule( counter, 50 );
+		assertEquals( 0, wheel.advance( timeout.getDeadline() - 20 ) );
+		assertEquals( 0, counter.runs.get() );
+		assertEquals( 1, wheel.advance( timeout.getDeadline() + wheel.getTickDuration() ) );
+		assertEquals( 1, counter.runs.get() );
+		assertTrue( timeout.isExpired() );
+		assertEquals( 0, wheel.advance( timeout.getDeadline() + 1000 ) );
+	}
+
+	@Test
+	public void advance_shouldWaitOutEveryRoundOfLongDelays() {
+		TimingWheel wheel = new TimingWheel( 10, 4 );
+		Counter counter = new Counter();
+		Timeout timeout = wheel.schedule( counter, 200 );
+		assertEquals( 0, wheel.advance( timeout.getDeadline() - 150 ) );
+		assertEquals( 0, wheel.advance( timeout.getDeadline() - 20 ) );
+		assertEquals( 1, wheel.size() );
+		assertEquals( 1, wheel.advance( timeout.getDeadline() + wheel.getTickDuration() ) );
+		assertEquals( 1, counter.runs.get() );
+	}
+
+	@Test
+	public void cancel_shouldFailOnceTaskHasRun() {
+		TimingWheel wheel = new TimingWheel( 10, 8 );
+		Timeout timeout = wheel.schedule( new Counter(), 0 );
+		assertEquals( 1, wheel.advance( timeout.getDeadline() + wheel.getTickDuration() ) );
+		assertFalse( timeout.cancel() );
+		assertFalse( timeout.isCancelled() );
+	}
+
+	@Test
+	public void cancel_shouldPreventTaskFromRunning() {
+		TimingWheel wheel = new TimingWheel( 10, 8 );
+		Counter counter = new Counter();
+		Timeout timeout = wheel.schedule( counter, 20 );
+		assertTrue( timeout.cancel() );
+		assertFalse( timeout.cancel() );
+		assertTrue( timeout.isCancelled() );
+		assertEquals( 0, wheel.advance( timeout.getDeadline() + 1000 ) );
+		assertEquals( 0, counter.runs.get() );
+		assertFalse( timeout.isExpired() );
+		assertTrue( wheel.isEmpty() );
+	}
+
+	@Test
+	public void cancel_shouldSucceedOnlyIfTaskDoesNotRun() throws InterruptedException {
+		for( int i = 0; i < 500; i++ ) {
+			final TimingWheel wheel = new TimingWheel( 1, 8 );
+			Counter counter = new Counter();
+			final Timeout timeout = wheel.schedule( counter, 0 );
+			final CountDownLatch start = new CountDownLatch( 1 );
+			final AtomicBoolean cancelled = new AtomicBoolean();
+			Thread canceller = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch( InterruptedException exception ) {
+						return;
+					}
+					cancelled.set( timeout.cancel() );
+				}
+
+			};
+			canceller.start();
+			start.countDown();
+			wheel.advance( timeout.getDeadline() + 10 );
+			canceller.join();
+			assertEquals( cancelled.get() ? 0 : 1, counter.runs.get() );
+			assertTrue( cancelled.get() != timeout.isExpired() );
+		}
+	}
+
+}
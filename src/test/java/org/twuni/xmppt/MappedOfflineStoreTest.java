@@ -0,0 +1,154 @@
+package org.twuni.xmppt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.twuni.nio.server.EncodedPacket;
+import org.twuni.nio.server.MappedOfflineStore;
+import org.twuni.nio.server.Transporter;
+import org.twuni.nio.server.Writable;
+
+public class MappedOfflineStoreTest extends Assert {
+
+	private static void delete( File file ) {
+		File [] children = file.listFiles();
+		if( children != null ) {
+			for( File child : children ) {
+				delete( child );
+			}
+		}
+		file.delete();
+	}
+
+	private static EncodedPacket packet( String packet ) {
+		return EncodedPacket.encode( packet );
+	}
+
+	private File directory;
+	private MappedOfflineStore store;
+
+	@Before
+	public void createStore() throws IOException {
+		directory = File.createTempFile( "offline", "" );
+		directory.delete();
+		store = new MappedOfflineStore( directory, 2, 4096 );
+	}
+
+	@After
+	public void deleteStore() throws IOException {
+		store.close();
+		delete( directory );
+	}
+
+	private void reopen() throws IOException {
+		store.close();
+		store = new MappedOfflineStore( directory, 2, 4096 );
+	}
+
+	@Test
+	public void load_shouldReturnPacketsInOrderAfterRestart() throws IOException {
+		store.store( "alice", packet( "one" ) );
+		store.store( "bob", packet( "two" ) );
+		store.store( "alice", packet( "three" ) );
+		reopen();
+		List<EncodedPacket> packets = store.load( "alice" );
+		assertEquals( 2, packets.size() );
+		assertEquals( "one", packets.get( 0 ).toString() );
+		assertEquals( "three", packets.get( 1 ).toString() );
+		assertEquals( 1, store.count( "bob" ) );
+	}
+
+	@Test
+	public void remove_shouldSurviveRestartAndCompaction() throws IOException {
+		for( int i = 0; i < 200; i++ ) {
+			store.store( "alice", packet( String.format( "<message id='%d'/>", Integer.valueOf( i ) ) ) );
+			store.remove( "alice" );
+		}
+		store.store( "alice", packet( "last" ) );
+		reopen();
+		List<EncodedPacket> packets = store.load( "alice" );
+		assertEquals( 1, packets.size() );
+		assertEquals( "last", packets.get( 0 ).toString() );
+		assertTrue( new File( directory, "shard-0" ).list().length + new File( directory, "shard-1" ).list().length < 4 );
+	}
+
+	@Test
+	public void store_shouldRejectPacketsOverQuota() throws IOException {
+		store.setMaximumPackets( 2 );
+		assertTrue( store.store( "alice", packet( "one" ) ) );
+		assertTrue( store.store( "alice", packet( "two" ) ) );
+		assertFalse( store.store( "alice", packet( "three" ) ) );
+	}
+
+	@Test
+	public void transporter_shouldReplayStoredPacketsWhenAvailable() throws IOException {
+
+		Transporter transporter = new Transporter();
+		transporter.setOfflineStore( store );
+		transporter.transport( "Hello, ", "alice" );
+		transporter.transport( "world.", "alice" );
+		assertEquals( 2, store.count( "alice" ) );
+
+		final StringBuilder out = new StringBuilder();
+
+		transporter.available( new Writable() {
+
+			@Override
+			public int write( byte [] buffer ) {
+				return write( buffer, 0, buffer.length );
+			}
+
+			@Override
+			public int write( byte [] buffer, int offset, int length ) {
+				out.append( new String( buffer, offset, length ) );
+				return length;
+			}
+
+		}, "alice" );
+
+		assertEquals( "Hello, world.", out.toString() );
+		assertEquals( 0, store.count( "alice" ) );
+
+	}
+
+	@Test
+	public void transporter_shouldForgetTargetsWithNothingPending() throws IOException {
+
+		Transporter transporter = new Transporter();
+		transporter.setOfflineStore( store );
+
+		for( int i = 0; i < 100; i++ ) {
+			transporter.transport( "Hello.", String.format( "user%d", Integer.valueOf( i ) ) );
+		}
+		assertEquals( 0, transporter.getRouteCount() );
+
+		Writable alice = new Writable() {
+
+			@Override
+			public int write( byte [] buffer ) {
+				return buffer.length;
+			}
+
+			@Override
+			public int write( byte [] buffer, int offset, int length ) {
+				return length;
+			}
+
+		};
+
+		transporter.available( alice, "alice" );
+		assertEquals( 1, transporter.getRouteCount() );
+
+		transporter.unavailable( alice, "alice" );
+		assertEquals( 0, transporter.getRouteCount() );
+		transporter.transport( "Hello again.", "alice" );
+		assertEquals( 1, store.count( "alice" ) );
+
+	}
+
+}
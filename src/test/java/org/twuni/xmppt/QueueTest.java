@@ -0,0 +1,113 @@
+package org.twuni.xmppt;
+
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.twuni.nio.server.Queue;
+
+public class QueueTest extends Assert {
+
+	@Test
+	public void acknowledge_shouldRemoveAcknowledgedPacketsFromTheFront() {
+		Queue queue = new Queue( "alice" );
+		for( int i = 1; i <= 100; i++ ) {
+			queue.add( "packet " + i );
+		}
+		assertEquals( 100, queue.getOffset() );
+		assertEquals( 40, queue.acknowledge( 40 ) );
+		assertEquals( 60, queue.size() );
+		assertEquals( 41, queue.getFirstSequence() );
+		assertEquals( "packet 41", queue.get( 41 ) );
+		assertNull( queue.get( 40 ) );
+		assertEquals( 0, queue.acknowledge( 40 ) );
+		assertEquals( 0, queue.acknowledge( 101 ) );
+		assertEquals( 60, queue.acknowledge( 100 ) );
+		assertTrue( queue.isEmpty() );
+		assertEquals( 0, queue.getByteSize() );
+	}
+
+	@Test
+	public void acknowledge_shouldHandleSequenceNumbersThatWrapAround() {
+		Queue queue = new Queue( "alice", Integer.MAX_VALUE - 1 );
+		queue.add( "a" );
+		queue.add( "b" );
+		queue.add( "c" );
+		assertEquals( Integer.MIN_VALUE + 1, queue.getOffset() );
+		assertEquals( 2, queue.acknowledge( Integer.MIN_VALUE ) );
+		assertEquals( "c", queue.get( Integer.MIN_VALUE + 1 ) );
+	}
+
+	@Test
+	public void iterator_shouldStartFromTheGivenSequenceNumber() {
+		Queue queue = new Queue( "alice" );
+		for( int i = 1; i <= 40; i++ ) {
+			queue.add( "packet " + i );
+		}
+		queue.acknowledge( 30 );
+		for( int i = 41; i <= 50; i++ ) {
+			queue.add( "packet " + i );
+		}
+		Iterator<Object> it = queue.iterator( 45 );
+		for( int i = 45; i <= 50; i++ ) {
+			assertEquals( "packet " + i, it.next() );
+		}
+		assertFalse( it.hasNext() );
+		assertEquals( "packet 31", queue.iterator( 1 ).next() );
+		assertFalse( queue.iterator( 51 ).hasNext() );
+	}
+
+	@Test
+	public void iterator_shouldRemovePacketsWithoutRenumberingThoseBehind() {
+		Queue queue = new Queue( "alice" );
+		for( int i = 1; i <= 20; i++ ) {
+			queue.add( "packet " + i );
+		}
+		queue.acknowledge( 10 );
+		for( int i = 21; i <= 30; i++ ) {
+			queue.add( "packet " + i );
+		}
+		Iterator<Object> it = queue.iterator();
+		while( it.hasNext() ) {
+			if( "packet 15".equals( it.next() ) ) {
+				it.remove();
+			}
+		}
+		assertEquals( 19, queue.size() );
+		assertEquals( 30, queue.getOffset() );
+		assertEquals( "packet 16", queue.get( 16 ) );
+		assertEquals( "packet 14", queue.get( 15 ) );
+		assertEquals( "packet 11", queue.get( 12 ) );
+		assertEquals( 171, queue.getByteSize() );
+		it = queue.iterator();
+		while( it.hasNext() ) {
+			it.next();
+			it.remove();
+		}
+		assertTrue( queue.isEmpty() );
+		assertEquals( 0, queue.getByteSize() );
+	}
+
+	@Test
+	public void getByteSize_shouldCountEncodedBytes() {
+		Queue queue = new Queue( "alice" );
+		queue.add( "caf\u00e9" );
+		assertEquals( 5, queue.getByteSize() );
+	}
+
+	@Test
+	public void transfer_shouldMovePacketsAndRewindOffset() {
+		Queue source = new Queue( "alice" );
+		Queue target = new Queue( "bob" );
+		source.add( "hello" );
+		source.add( "world" );
+		assertEquals( 10, source.getByteSize() );
+		source.transfer( target );
+		assertEquals( 0, source.getOffset() );
+		assertTrue( source.isEmpty() );
+		assertEquals( 2, target.getOffset() );
+		assertEquals( 10, target.getByteSize() );
+		assertEquals( "hello", target.get( 1 ) );
+	}
+
+}
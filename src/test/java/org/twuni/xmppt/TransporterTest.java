@@ -1,10 +1,13 @@
 package org.twuni.xmppt;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.twuni.nio.server.Queue;
 import org.twuni.nio.server.Transporter;
 import org.twuni.nio.server.Writable;
 
@@ -14,6 +17,7 @@ public class TransporterTest extends Assert {
 
 		private final String id;
 		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int writes;
 
 		public NamedBuffer( String id ) {
 			this.id = id;
@@ -27,6 +31,10 @@ public class TransporterTest extends Assert {
 			return id;
 		}
 
+		public int getWriteCount() {
+			return writes;
+		}
+
 		@Override
 		public String toString() {
 			return out.toString();
@@ -40,6 +48,7 @@ public class TransporterTest extends Assert {
 		@Override
 		public int write( byte [] buffer, int offset, int length ) {
 			out.write( buffer, offset, length );
+			writes++;
 			return length;
 		}
 
@@ -57,12 +66,121 @@ public class TransporterTest extends Assert {
 		assertEquals( expected, target.toString() );
 	}
 
+	@Test
+	public void available_shouldTransportPendingPacketsInBatches() {
+		StringBuilder expected = new StringBuilder();
+		for( int i = 0; i < 500; i++ ) {
+			String packet = String.format( "<message id='%d'/>", Integer.valueOf( i ) );
+			transporter.transport( packet, target.id() );
+			expected.append( packet );
+		}
+		transporter.setBatchSize( 1024 );
+		transporter.available( target, target.id() );
+		assertEquals( expected.toString(), target.toString() );
+		assertTrue( target.getWriteCount() < 20 );
+	}
+
 	@Before
 	public void createTransporter() {
 		transporter = new Transporter();
 		target = new NamedBuffer( "alice" );
 	}
 
+	@Test
+	public void restore_shouldTransportPacketsFromSavedSnapshot() throws IOException {
+		transporter.transport( "<message id='1'>\u00e9t\u00e9</message>", target.id() );
+		transporter.transport( "<message id='2'/>", target.id() );
+		transporter.transport( "<message id='3'/>", "nobody" );
+
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		transporter.save( snapshot );
+
+		Transporter.State state = Transporter.State.load( new ByteArrayInputStream( snapshot.toByteArray() ) );
+		assertEquals( 2, state.pendingSend.get( target.id() ).size() );
+		assertEquals( 1, state.pendingSend.get( "nobody" ).size() );
+
+		Transporter restored = new Transporter();
+		assertEquals( 3, restored.restore( new ByteArrayInputStream( snapshot.toByteArray() ) ) );
+		restored.available( target, target.id() );
+		assertEquals( "<message id='1'>\u00e9t\u00e9</message><message id='2'/>", new String( target.getBytes(), "UTF-8" ) );
+	}
+
+	@Test
+	public void save_shouldKeepOffsetsOfPendingPackets() throws IOException {
+		transporter.available( target, target.id() );
+		transporter.transport( "<message id='1'/>", target.id() );
+		transporter.transport( "<message id='2'/>", target.id() );
+		transporter.available( new Writable() {
+
+			@Override
+			public int write( byte [] buffer ) {
+				return -1;
+			}
+
+			@Override
+			public int write( byte [] buffer, int offset, int length ) {
+				return -1;
+			}
+
+		}, target.id() );
+		transporter.transport( "<message id='3'/>", target.id() );
+
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		transporter.save( snapshot );
+		assertEquals( 3, Transporter.State.load( new ByteArrayInputStream( snapshot.toByteArray() ) ).pendingSend.get( target.id() ).getFirstSequence() );
+
+		Transporter restored = new Transporter();
+		restored.restore( new ByteArrayInputStream( snapshot.toByteArray() ) );
+		assertEquals( 3, restored.save().pendingSend.get( target.id() ).getFirstSequence() );
+	}
+
+	@Test
+	public void save_shouldKeepQueueOffsets() throws IOException {
+		Transporter.State state = new Transporter.State();
+		Queue queue = new Queue( target.id(), 41 );
+		queue.add( "<message id='42'/>" );
+		state.pendingSend.put( queue.id(), queue );
+
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		state.save( snapshot );
+
+		Queue loaded = Transporter.State.load( new ByteArrayInputStream( snapshot.toByteArray() ) ).pendingSend.get( target.id() );
+		assertEquals( 42, loaded.getOffset() );
+		assertEquals( "<message id='42'/>", loaded.get( 42 ).toString() );
+	}
+
+	@Test
+	public void transport_shouldDeliverEveryPacketFromConcurrentSenders() throws InterruptedException {
+
+		final int senders = 4;
+		final int packets = 1000;
+
+		transporter.available( target, target.id() );
+
+		Thread [] threads = new Thread [senders];
+
+		for( int i = 0; i < senders; i++ ) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for( int j = 0; j < packets; j++ ) {
+						transporter.transport( ".", target.id() );
+					}
+				}
+
+			};
+			threads[i].start();
+		}
+
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+
+		assertEquals( senders * packets, target.getBytes().length );
+
+	}
+
 	@Test
 	public void transport_shouldNotTransportPacketsToUnknownTarget() {
 		transporter.transport( "This message should not have been delivered.", target.id() );
@@ -77,9 +195,22 @@ public class TransporterTest extends Assert {
 		assertEquals( expected, target.toString() );
 	}
 
+	@Test
+	public void unavailable_shouldKeepTargetThatReplacedTheOneLeaving() {
+		NamedBuffer replacement = new NamedBuffer( target.id() );
+		transporter.available( target, target.id() );
+		transporter.available( replacement, target.id() );
+		transporter.unavailable( target, target.id() );
+		transporter.transport( "This message is for the new connection.", target.id() );
+		assertArrayEquals( new byte [0], target.getBytes() );
+		assertEquals( "This message is for the new connection.", replacement.toString() );
+		assertEquals( 1, transporter.getRouteCount() );
+	}
+
 	@Test
 	public void unavailable_shouldPreventPacketsFromBeingTransported() {
-		transporter.unavailable( target.id() );
+		transporter.available( target, target.id() );
+		transporter.unavailable( target, target.id() );
 		transporter.transport( "This message should not have been delivered.", target.id() );
 		assertArrayEquals( new byte [0], target.getBytes() );
 	}
@@ -168,7 +168,7 @@ public class XMPPTestServer implements Runnable {
 
 			if( Presence.Type.UNAVAILABLE.equals( presence.type() ) ) {
 				xmpp.available = false;
-				transporter.unavailable( jid );
+				transporter.unavailable( xmpp.socket, jid );
 				xmpp.socket.close();
 				throw new EOFException();
 			}
@@ -267,9 +267,9 @@ public class XMPPTestServer implements Runnable {
 
 		if( packet instanceof Acknowledgment ) {
 			Acknowledgment acknowledgment = (Acknowledgment) packet;
-			if( acknowledgment.getH() == getOrCreateUnacknowledgedPacketQueue( jid ).getOffset() ) {
-				unacknowledged.clear();
-			} else {
+			Queue q = getOrCreateUnacknowledgedPacketQueue( jid );
+			q.acknowledge( acknowledgment.getH() );
+			if( !q.isEmpty() ) {
 				sendUnacknowledgedMessages( jid );
 			}
 		}
@@ -1,5 +1,7 @@
 package org.twuni.xmppt.xml;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -8,13 +10,171 @@ import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.twuni.xmppt.xml.validator.BaseValidator;
+import org.twuni.xmppt.xml.validator.ValidateEmptyTag;
+import org.twuni.xmppt.xml.validator.ValidateOnEndTagChildHasParent;
+import org.twuni.xmppt.xml.validator.ValidateOnEndTagHasChildren;
+import org.twuni.xmppt.xml.validator.ValidateOnStartTagChildHasParent;
+import org.twuni.xmppt.xml.validator.ValidateOnStartTagHasNoChildren;
+import org.twuni.xmppt.xml.validator.XMLStreamValidator;
 
 public class XMLElementParserTest extends Assert {
 
+	private static void assertValid( String in, XMLStreamValidator validator ) {
+		byte [] bytes = in.getBytes();
+		new XMLElementParser().feed( bytes, 0, bytes.length, validator );
+		assertTrue( validator.isValid() );
+	}
+
 	private static XMLElement parse( String in ) {
 		return new XMLElementParser().parse( in ).get( 0 );
 	}
 
+	@Test
+	public void feed_shouldCarryIncompleteMarkupOverToTheNextCall() throws UnsupportedEncodingException {
+		byte [] in = "<message to='bob'><body>caf\u00e9 &amp; cr\u00e8me</body></message><a/>".getBytes( "UTF-8" );
+		XMLElementParser parser = new XMLElementParser();
+		List<XMLElement> elements = new ArrayList<XMLElement>();
+		for( int i = 0; i < in.length; i++ ) {
+			elements.addAll( parser.feed( in, i, 1 ) );
+		}
+		assertEquals( 2, elements.size() );
+		XMLElement message = elements.get( 0 );
+		assertEquals( "message", message.name );
+		assertEquals( "bob", message.attribute( "to" ) );
+		assertEquals( "<body>caf\u00e9 &amp; cr\u00e8me</body>", message.content() );
+		assertEquals( "a", elements.get( 1 ).name );
+	}
+
+	@Test
+	public void feed_shouldParseDirectBuffersInPlace() throws UnsupportedEncodingException {
+		byte [] in = "<message from='j\u00fcrgen'><body>\u65e5\u672c\u8a9e</body></message>".getBytes( "UTF-8" );
+		ByteBuffer buffer = ByteBuffer.allocateDirect( in.length );
+		buffer.put( in ).flip();
+		XMLElementParser parser = new XMLElementParser();
+		buffer.limit( 31 );
+		assertTrue( parser.feed( buffer ).isEmpty() );
+		assertEquals( 31, buffer.position() );
+		buffer.limit( in.length );
+		List<XMLElement> elements = parser.feed( buffer );
+		assertFalse( buffer.hasRemaining() );
+		assertEquals( 1, elements.size() );
+		assertEquals( "j\u00fcrgen", elements.get( 0 ).attribute( "from" ) );
+		assertEquals( "<body>\u65e5\u672c\u8a9e</body>", elements.get( 0 ).content() );
+	}
+
+	@Test
+	public void feed_shouldReturnEachElementOnlyOnceItCloses() {
+		XMLElementParser parser = new XMLElementParser();
+		assertTrue( parser.feed( "<iq id=\"1\"><ping/>".getBytes() ).isEmpty() );
+		List<XMLElement> elements = parser.feed( "</iq>".getBytes() );
+		assertEquals( 1, elements.size() );
+		assertEquals( 1, elements.get( 0 ).children.size() );
+	}
+
+	@Test
+	public void feed_shouldReturnStreamRootAndChildrenSeparately() {
+		XMLElementParser parser = new XMLElementParser( true );
+		List<XMLElement> elements = parser.feed( "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' to='example.com'><stream:feat".getBytes() );
+		assertEquals( 1, elements.size() );
+		XMLElement stream = elements.get( 0 );
+		assertEquals( "stream", stream.name );
+		assertEquals( "http://etherx.jabber.org/streams", stream.getNamespace() );
+		assertTrue( stream.children.isEmpty() );
+
+		elements = parser.feed( "ures><bind/></stream:features> <message><body>Hi</body></message>".getBytes() );
+		assertEquals( 2, elements.size() );
+		assertEquals( "features", elements.get( 0 ).name );
+		assertEquals( "http://etherx.jabber.org/streams", elements.get( 0 ).getNamespace() );
+		assertNull( elements.get( 0 ).parent );
+		assertEquals( "message", elements.get( 1 ).name );
+		assertTrue( stream.children.isEmpty() );
+	}
+
+	@Test
+	public void feed_shouldMaterializeOnlyRequestedSubtrees() {
+
+		final XMLElementParser parser = new XMLElementParser( true );
+		final ValidateOnEndTagHasChildren materialized = new ValidateOnEndTagHasChildren();
+		final List<XMLElement> ended = new ArrayList<XMLElement>();
+
+		byte [] in = "<stream:stream><presence><show>away</show></presence><message to='bob'><body>Hi</body></message>".getBytes();
+
+		parser.feed( in, 0, in.length, new BaseValidator() {
+
+			@Override
+			public void onEndTag( XMLElement element ) {
+				ended.add( element );
+				if( "message".equals( element.name ) ) {
+					materialized.onEndTag( element );
+				}
+			}
+
+			@Override
+			public void onStartTag( XMLElement element ) {
+				if( "message".equals( element.name ) ) {
+					parser.materialize();
+				}
+			}
+
+		} );
+
+		assertTrue( materialized.isValid() );
+		assertEquals( 4, ended.size() );
+		assertEquals( "presence", ended.get( 1 ).name );
+		assertTrue( ended.get( 1 ).children.isEmpty() );
+		assertEquals( "<body>Hi</body>", ended.get( 3 ).content() );
+
+	}
+
+	@Test
+	public void feed_shouldReturnCanonicalInstancesOfDefinedSymbols() {
+		XMLSymbols symbols = new XMLSymbols( "message", "to", "chat", "jabber:client" );
+		XMLElementParser parser = new XMLElementParser( false, symbols );
+		XMLElement message = parser.feed( "<message to='chat' type='chat' xmlns='jabber:client'><x:body xmlns:x='x'>chat</x:body></message>".getBytes() ).get( 0 );
+		assertSame( "message", message.name );
+		assertSame( "chat", message.attribute( "to" ) );
+		assertSame( "jabber:client", message.getNamespace() );
+		for( String name : message.attributes.keySet() ) {
+			if( "to".equals( name ) ) {
+				assertSame( "to", name );
+			}
+		}
+		XMLElement body = (XMLElement) message.children.iterator().next();
+		assertEquals( "x", body.prefix );
+		assertEquals( "body", body.name );
+		assertEquals( "chat", body.content() );
+		assertEquals( 4, symbols.size() );
+	}
+
+	@Test
+	public void feed_shouldReportEventsToListener() {
+		assertValid( "<a/>", new ValidateEmptyTag() );
+		assertValid( "<parent><child/></parent>", new ValidateOnStartTagChildHasParent() );
+		assertValid( "<parent><child/></parent>", new ValidateOnEndTagChildHasParent() );
+		assertValid( "<parent><child/></parent>", new ValidateOnStartTagHasNoChildren() );
+	}
+
+	@Test
+	public void feed_shouldRestartStreamOnNewStreamHeader() {
+		XMLElementParser parser = new XMLElementParser( true );
+		parser.feed( "<stream:stream xmlns:stream='http://etherx.jabber.org/streams'><auth>".getBytes() );
+		List<XMLElement> elements = parser.feed( "<stream:stream xmlns:stream='http://etherx.jabber.org/streams' id='2'><iq/>".getBytes() );
+		assertEquals( 2, elements.size() );
+		assertEquals( "2", elements.get( 0 ).attribute( "id" ) );
+		assertEquals( "iq", elements.get( 1 ).name );
+	}
+
+	@Test
+	public void feed_shouldScopeNamespaceDeclarationsToTheirElements() {
+		XMLElementParser parser = new XMLElementParser();
+		List<XMLElement> elements = parser.feed( "<a xmlns:x='urn:one'><x:b/></a><x:c/>".getBytes() );
+		assertEquals( 2, elements.size() );
+		XMLElement b = (XMLElement) elements.get( 0 ).children.iterator().next();
+		assertEquals( "urn:one", b.getNamespace() );
+		assertNull( elements.get( 1 ).getNamespace() );
+	}
+
 	@Test
 	public void parse_shouldDiscardTopLevelText() {
 		List<XMLElement> entities = new XMLElementParser().parse( "Ignore this." );
@@ -54,6 +214,31 @@ public class XMLElementParserTest extends Assert {
 		assertEquals( "1", expected.attribute( "a" ) );
 	}
 
+	@Test
+	public void parse_shouldKeepAttributesAndChildrenInDocumentOrder() {
+		XMLElement actual = parse( "<test z=\"9\" a=\"1\" m=\"5\"><x/>text<y/></test>" );
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put( "a", "1" );
+		expected.put( "m", "5" );
+		expected.put( "z", "9" );
+		assertEquals( expected, actual.attributes );
+		assertEquals( "[z, a, m]", actual.attributes.keySet().toString() );
+		assertEquals( "1", actual.attributes.remove( "a" ) );
+		actual.attributes.put( "z", "8" );
+		assertEquals( "{z=8, m=5}", actual.attributes.toString() );
+		assertEquals( 3, actual.children.size() );
+		assertEquals( "<x/>text<y/>", actual.content() );
+	}
+
+	@Test
+	public void parse_shouldMatchEndTagsByEncodedName() {
+		List<XMLElement> elements = new XMLElementParser().parse( "<caf\u00e9><\u65e5/></caf\u00e8></caf\u00e9 ><\ud83d\ude00></\ud83d\ude00>" );
+		assertEquals( 2, elements.size() );
+		assertEquals( "caf\u00e9", elements.get( 0 ).name );
+		assertEquals( 1, elements.get( 0 ).children.size() );
+		assertEquals( "\ud83d\ude00", elements.get( 1 ).name );
+	}
+
 	@Test
 	public void parse_shouldParseSimpleElementWithTwoAttributes() {
 		Map<String, String> attributes = new HashMap<String, String>();